@@ -4,6 +4,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import com.getcapacitor.JSArray;
@@ -12,6 +13,7 @@ import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
+import com.tencent.mm.opensdk.constants.Build;
 import com.tencent.mm.opensdk.constants.ConstantsAPI;
 import com.tencent.mm.opensdk.modelbase.BaseReq;
 import com.tencent.mm.opensdk.modelbase.BaseResp;
@@ -29,12 +31,19 @@ import com.tencent.mm.opensdk.modelmsg.WXWebpageObject;
 import com.tencent.mm.opensdk.modelpay.PayReq;
 import com.tencent.mm.opensdk.openapi.IWXAPI;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import org.json.JSONArray;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.json.JSONException;
 
 @CapacitorPlugin(name = "CapacitorWechat")
@@ -50,25 +59,105 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
 
     private static final int MINI_PROGRAM_TYPE_RELEASE = 0;
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final String EVENT_METRICS = "metrics";
+    private static final String EVENT_WECHAT_REQUEST = "wechatRequest";
+
+    private static final int DEFAULT_AUTH_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final int DEFAULT_PAY_TIMEOUT_MS = 10 * 60 * 1000;
+    private static final int DEFAULT_SHARE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final int DEFAULT_MINI_PROGRAM_TIMEOUT_MS = 10 * 60 * 1000;
+    private static final int DEFAULT_INVOICE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private static final long WARM_UP_TIMEOUT_MS = 5000;
+
+    private static final int DEFAULT_PREPARED_SHARE_TTL_MS = 60000;
+    private static final int MAX_PREPARED_SHARES = 8;
+
+    private static final String[] SHARE_CONTENT_FIELDS = {
+        "type",
+        "text",
+        "imageUrl",
+        "link",
+        "title",
+        "description",
+        "mediaUrl",
+        "thumbUrl",
+        "miniProgramUsername",
+        "miniProgramPath",
+        "miniProgramType",
+        "miniProgramWebPageUrl"
+    };
+
+    private final WechatScheduler scheduler = new WechatScheduler();
+    private final WechatMediaResolver mediaResolver = new WechatMediaResolver(scheduler);
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
-    private final Map<Integer, PluginCall> pendingCalls = new ConcurrentHashMap<>();
+    private final WechatPendingCalls pendingCalls = new WechatPendingCalls(mainHandler, this::onCallExpired);
+    private final Map<String, MediaWork> mediaWork = new ConcurrentHashMap<>();
+    private final WechatRequestEvents requestEvents = new WechatRequestEvents();
+    private final Map<String, PreparedShare> preparedShares = new LinkedHashMap<String, PreparedShare>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedShare> eldest) {
+            return size() > MAX_PREPARED_SHARES;
+        }
+    };
 
-    private String currentAppId;
-    private String universalLink;
-    private IWXAPI api;
+    // Written by the asyncInit warm-up thread, read by plugin calls.
+    private volatile String currentAppId;
+    private volatile String universalLink;
+    private volatile IWXAPI api;
+    private volatile Future<?> warmUp;
+    private volatile long sdkInitMs = -1;
     private final String pluginVersion = "8.0.4";
 
     @Override
     public void load() {
         super.load();
         WechatManager.getInstance().registerListener(this);
+        WechatMetrics.getInstance().setListener(this::onMetricSample);
 
         Context context = getContext();
         if (context == null) {
             return;
         }
 
+        WechatThumbnailCache.getInstance().register(context);
+        WechatBitmapPool.getInstance().register(context);
+        WechatImageHelper.setThumbnailFormat(
+            WechatThumbnailEncoder.Format.fromConfig(getConfig().getString("thumbnailFormat", null))
+        );
+        mediaResolver.setTimeout(getConfig().getInt("mediaTimeout", (int) WechatMediaResolver.DEFAULT_TIMEOUT_MS));
+        WechatHttpClient.getInstance().setTimeouts(
+            getConfig().getInt("connectTimeout", WechatHttpClient.DEFAULT_CONNECT_TIMEOUT_MS),
+            getConfig().getInt("readTimeout", WechatHttpClient.DEFAULT_READ_TIMEOUT_MS)
+        );
+        WechatMediaCache.getInstance(context).setMaxBytes(
+            getConfig().getInt("mediaCacheSize", (int) WechatMediaCache.DEFAULT_MAX_BYTES)
+        );
+        WechatMediaCache.getInstance(context).setMaxDownloadBytes(
+            getConfig().getInt("maxDownloadSize", (int) WechatMediaCache.DEFAULT_MAX_DOWNLOAD_BYTES)
+        );
+        pendingCalls.setTimeout(REQUEST_TYPE_AUTH, getConfig().getInt("authTimeout", DEFAULT_AUTH_TIMEOUT_MS));
+        pendingCalls.setTimeout(REQUEST_TYPE_PAY, getConfig().getInt("payTimeout", DEFAULT_PAY_TIMEOUT_MS));
+        pendingCalls.setTimeout(REQUEST_TYPE_SHARE, getConfig().getInt("shareTimeout", DEFAULT_SHARE_TIMEOUT_MS));
+        pendingCalls.setTimeout(
+            REQUEST_TYPE_MINI_PROGRAM,
+            getConfig().getInt("miniProgramTimeout", DEFAULT_MINI_PROGRAM_TIMEOUT_MS)
+        );
+        pendingCalls.setTimeout(REQUEST_TYPE_INVOICE, getConfig().getInt("invoiceTimeout", DEFAULT_INVOICE_TIMEOUT_MS));
+
+        if (getConfig().getBoolean("asyncInit", false)) {
+            // Keep WXAPIFactory and the preference read off the bridge startup path; ensureReady() waits for it.
+            warmUp = scheduler.submit(WechatScheduler.Lane.IO, WechatScheduler.Priority.INTERACTIVE, null, () -> {
+                initializeFromConfig(context, true);
+                return null;
+            });
+        } else {
+            initializeFromConfig(context, false);
+        }
+    }
+
+    private void initializeFromConfig(Context context, boolean async) {
+        long start = SystemClock.elapsedRealtime();
         String configuredAppId = getConfig().getString("appId", null);
         String configuredUniversalLink = getConfig().getString("universalLink", null);
         if (TextUtils.isEmpty(configuredAppId)) {
@@ -79,18 +168,57 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
         if (!TextUtils.isEmpty(configuredAppId)) {
             configureSdk(configuredAppId, configuredUniversalLink, false);
         }
+        sdkInitMs = SystemClock.elapsedRealtime() - start;
+        Log.d(TAG, (async ? "Async" : "Eager") + " SDK initialisation took " + sdkInitMs + "ms");
+    }
+
+    /** Blocks the plugin thread until an {@code asyncInit} warm-up has finished. */
+    private void awaitWarmUp() {
+        Future<?> pending = warmUp;
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get(WARM_UP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            Log.w(TAG, "SDK warm-up did not complete", ex);
+        }
+        warmUp = null;
+    }
+
+    @Override
+    protected void handleOnResume() {
+        super.handleOnResume();
+        // The sweeper runs on uptime, which stops while the device sleeps.
+        pendingCalls.sweep();
     }
 
     @Override
     protected void handleOnDestroy() {
         super.handleOnDestroy();
-        executor.shutdown();
+        for (MediaWork work : mediaWork.values()) {
+            work.token.cancel();
+        }
+        mediaWork.clear();
+        scheduler.shutdown();
         pendingCalls.clear();
+        synchronized (preparedShares) {
+            preparedShares.clear();
+        }
+        Context context = getContext();
+        if (context != null) {
+            WechatThumbnailCache.getInstance().unregister(context);
+            WechatBitmapPool.getInstance().unregister(context);
+        }
         WechatManager.getInstance().unregisterListener(this);
+        WechatMetrics.getInstance().setListener(null);
     }
 
     @PluginMethod
     public void initialize(PluginCall call) {
+        awaitWarmUp();
         String appId = call.getString("appId");
         if (TextUtils.isEmpty(appId)) {
             call.reject(WechatConstants.ERROR_APP_ID_MISSING);
@@ -109,12 +237,34 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
         if (!ensureReady(call, false)) {
             return;
         }
-        boolean installed = api != null && api.isWXAppInstalled();
+        boolean installed = api != null && WechatManager.getInstance().getInstallState().installed;
         JSObject result = new JSObject();
         result.put("installed", installed);
         call.resolve(result);
     }
 
+    @PluginMethod
+    public void getCapabilities(PluginCall call) {
+        if (!ensureReady(call, false)) {
+            return;
+        }
+        WechatManager.InstallState state = api == null
+            ? WechatManager.InstallState.UNKNOWN
+            : WechatManager.getInstance().getInstallState();
+        int supportApi = state.supportApi;
+        JSObject result = new JSObject();
+        result.put("installed", state.installed);
+        result.put("supportApi", supportApi);
+        result.put("timeline", supportApi >= Build.TIMELINE_SUPPORTED_SDK_INT);
+        result.put("payment", supportApi >= Build.PAY_SUPPORTED_SDK_INT);
+        result.put("miniProgram", supportApi >= Build.LAUNCH_MINIPROGRAM_SUPPORTED_SDK_INT);
+        result.put("invoice", supportApi >= Build.CHOOSE_INVOICE_TILE_SUPPORT_SDK_INT);
+        result.put("businessView", supportApi >= Build.OPEN_BUSINESS_VIEW_SDK_INT);
+        result.put("fileShare", supportApi >= WechatImageStager.FILE_PROVIDER_MIN_SUPPORT_API);
+        result.put("sdkInitMs", sdkInitMs);
+        call.resolve(result);
+    }
+
     @PluginMethod
     public void auth(PluginCall call) {
         if (!ensureReady(call, true) || !ensureWechatInstalled(call)) {
@@ -130,9 +280,6 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
         req.scope = scope;
         req.state = TextUtils.isEmpty(state) ? UUID.randomUUID().toString() : state;
 
-        if (!registerPendingCall(REQUEST_TYPE_AUTH, call)) {
-            return;
-        }
         sendRequestOrReject(req, REQUEST_TYPE_AUTH, call);
     }
 
@@ -142,6 +289,17 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
             return;
         }
 
+        String preparedId = call.getString("preparedId");
+        if (!TextUtils.isEmpty(preparedId)) {
+            PreparedShare prepared = takePreparedShare(preparedId);
+            if (prepared == null) {
+                call.reject(WechatConstants.ERROR_PREPARED_SHARE_NOT_FOUND);
+                return;
+            }
+            sendShareRequest(call, prepared.request, prepared.adjustments);
+            return;
+        }
+
         Integer scene = call.getInt("scene");
         String type = call.getString("type");
         if (scene == null || TextUtils.isEmpty(type)) {
@@ -149,23 +307,104 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
             return;
         }
 
+        WechatSharePlanner plan = WechatSharePlanner.forType(type);
         if ("text".equals(type)) {
-            sendShareRequest(call, buildTextShare(scene, call.getString("text")));
+            SendMessageToWX.Req req = newShareRequest(type, scene, buildTextMessage(call.getString("text"), plan));
+            sendShareRequest(call, req, plan.getAdjustments());
             return;
         }
 
-        executor.execute(() -> {
-            try {
-                SendMessageToWX.Req req = buildRichShare(call, type, scene);
-                mainHandler.post(() -> sendShareRequest(call, req));
-            } catch (IllegalArgumentException ex) {
-                call.reject(ex.getMessage());
-            } catch (IOException ex) {
-                call.reject(WechatConstants.ERROR_BITMAP_LOAD, ex);
-            }
+        submitMediaWork(call, WechatScheduler.Priority.INTERACTIVE, (token) -> {
+            SendMessageToWX.Req req = buildRichShare(
+                call.getData(),
+                type,
+                scene,
+                plan,
+                token,
+                WechatScheduler.Priority.INTERACTIVE
+            );
+            return () -> mainHandler.post(() -> sendShareRequest(call, req, plan.getAdjustments()));
+        });
+    }
+
+    @PluginMethod
+    public void prepareShare(PluginCall call) {
+        if (!ensureReady(call, true)) {
+            return;
+        }
+
+        Integer scene = call.getInt("scene");
+        String type = call.getString("type");
+        if (scene == null || TextUtils.isEmpty(type)) {
+            call.reject(WechatConstants.ERROR_INVALID_ARGUMENTS);
+            return;
+        }
+        int ttl = call.getInt("ttl", DEFAULT_PREPARED_SHARE_TTL_MS);
+        if (ttl <= 0) {
+            call.reject(WechatConstants.ERROR_INVALID_ARGUMENTS);
+            return;
+        }
+
+        submitMediaWork(call, WechatScheduler.Priority.PREFETCH, (token) -> {
+            WechatSharePlanner plan = WechatSharePlanner.forType(type);
+            SendMessageToWX.Req req = "text".equals(type)
+                ? newShareRequest(type, scene, buildTextMessage(call.getString("text"), plan))
+                : buildRichShare(call.getData(), type, scene, plan, token, WechatScheduler.Priority.PREFETCH);
+            return () -> {
+                String preparedId = UUID.randomUUID().toString();
+                long expiresAt = SystemClock.elapsedRealtime() + ttl;
+                PreparedShare prepared = new PreparedShare(req, plan.getAdjustments(), expiresAt);
+                synchronized (preparedShares) {
+                    preparedShares.put(preparedId, prepared);
+                }
+                mainHandler.postDelayed(() -> evictPreparedShare(preparedId, prepared), ttl);
+
+                JSObject result = new JSObject();
+                result.put("preparedId", preparedId);
+                result.put("expiresIn", ttl);
+                result.put("adjustments", plan.getAdjustments());
+                call.resolve(result);
+            };
         });
     }
 
+    @PluginMethod
+    public void cancelShare(PluginCall call) {
+        String requestId = call.getString("requestId");
+        if (TextUtils.isEmpty(requestId)) {
+            call.reject(WechatConstants.ERROR_INVALID_ARGUMENTS);
+            return;
+        }
+        MediaWork work = mediaWork.remove(requestId);
+        if (work != null) {
+            work.token.cancel();
+            work.call.reject(WechatConstants.ERROR_CANCELLED, WechatConstants.ERROR_CODE_CANCELLED);
+        }
+        JSObject result = new JSObject();
+        result.put("cancelled", work != null);
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void shareBatch(PluginCall call) {
+        if (!ensureReady(call, true) || !ensureWechatInstalled(call)) {
+            return;
+        }
+        List<JSObject> items = parseShareItems(call.getArray("items"));
+        if (items == null) {
+            call.reject(WechatConstants.ERROR_INVALID_ARGUMENTS);
+            return;
+        }
+        String requestId = call.getString("requestId");
+        String key = TextUtils.isEmpty(requestId) ? call.getCallbackId() : requestId;
+        ShareBatch batch = new ShareBatch(call, key, items, call.getBoolean("stopOnError", false));
+        if (mediaWork.putIfAbsent(key, batch.work) != null) {
+            call.reject("requestId is already in use.");
+            return;
+        }
+        mainHandler.post(batch::advance);
+    }
+
     @PluginMethod
     public void sendPaymentRequest(PluginCall call) {
         if (!ensureReady(call, true) || !ensureWechatInstalled(call)) {
@@ -199,9 +438,6 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
         req.packageValue = packageValue;
         req.sign = sign;
 
-        if (!registerPendingCall(REQUEST_TYPE_PAY, call)) {
-            return;
-        }
         sendRequestOrReject(req, REQUEST_TYPE_PAY, call);
     }
 
@@ -220,9 +456,6 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
         req.path = call.getString("path");
         req.miniprogramType = call.getInt("type", 0);
 
-        if (!registerPendingCall(REQUEST_TYPE_MINI_PROGRAM, call)) {
-            return;
-        }
         sendRequestOrReject(req, REQUEST_TYPE_MINI_PROGRAM, call);
     }
 
@@ -256,10 +489,86 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
         req.timeStamp = timeStamp;
         req.canMultiSelect = "1";
 
-        if (!registerPendingCall(REQUEST_TYPE_INVOICE, call)) {
+        sendRequestOrReject(req, REQUEST_TYPE_INVOICE, call);
+    }
+
+    @PluginMethod
+    public void getMediaCacheStats(PluginCall call) {
+        Context context = getContext();
+        if (context == null) {
+            call.reject(WechatConstants.ERROR_SDK_NOT_READY);
             return;
         }
-        sendRequestOrReject(req, REQUEST_TYPE_INVOICE, call);
+        WechatMediaCache.Stats stats = WechatMediaCache.getInstance(context).getStats();
+        JSObject result = new JSObject();
+        result.put("hits", stats.hits);
+        result.put("misses", stats.misses);
+        result.put("revalidations", stats.revalidations);
+        result.put("evictions", stats.evictions);
+        result.put("entries", stats.entryCount);
+        result.put("sizeBytes", stats.sizeBytes);
+        result.put("maxBytes", stats.maxBytes);
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void clearMediaCache(PluginCall call) {
+        Context context = getContext();
+        if (context == null) {
+            call.reject(WechatConstants.ERROR_SDK_NOT_READY);
+            return;
+        }
+        scheduler.submit(WechatScheduler.Lane.IO, WechatScheduler.Priority.INTERACTIVE, null, () -> {
+            WechatMediaCache.getInstance(context).clear();
+            call.resolve();
+            return null;
+        });
+    }
+
+    @PluginMethod
+    public void getCallStats(PluginCall call) {
+        WechatPendingCalls.Stats stats = pendingCalls.getStats();
+        WechatEventBuffer.Stats buffered = WechatManager.getInstance().getBufferStats();
+        JSObject result = new JSObject();
+        result.put("pending", stats.pending);
+        result.put("completed", stats.completed);
+        result.put("expired", stats.expired);
+        result.put("bufferedEvents", buffered.buffered);
+        result.put("replayedEvents", buffered.replayed);
+        result.put("droppedEvents", buffered.dropped);
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void getMetrics(PluginCall call) {
+        List<WechatMetrics.Histogram> histograms = WechatMetrics.getInstance().snapshot(
+            Boolean.TRUE.equals(call.getBoolean("reset", false))
+        );
+        JSArray bounds = new JSArray();
+        for (long bound : WechatMetrics.BUCKETS_MS) {
+            bounds.put(bound);
+        }
+        JSArray entries = new JSArray();
+        for (WechatMetrics.Histogram histogram : histograms) {
+            JSArray buckets = new JSArray();
+            for (long count : histogram.buckets) {
+                buckets.put(count);
+            }
+            JSObject entry = new JSObject();
+            entry.put("name", histogram.name);
+            entry.put("outcome", histogram.outcome);
+            entry.put("count", histogram.count);
+            entry.put("totalMs", histogram.totalMs);
+            entry.put("maxMs", histogram.maxMs);
+            entry.put("p50Ms", histogram.quantileMs(0.5));
+            entry.put("p95Ms", histogram.quantileMs(0.95));
+            entry.put("buckets", buckets);
+            entries.put(entry);
+        }
+        JSObject result = new JSObject();
+        result.put("bucketBoundsMs", bounds);
+        result.put("histograms", entries);
+        call.resolve(result);
     }
 
     @PluginMethod
@@ -275,41 +584,112 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
 
     @Override
     public void onWechatResponse(BaseResp resp) {
-        PluginCall pending = pendingCalls.remove(resp.getType());
-        if (pending == null) {
+        WechatPendingCalls.Entry entry = pendingCalls.take(resp.getType(), resp.transaction);
+        if (entry == null) {
             Log.w(TAG, "No pending call for response type " + resp.getType());
             return;
         }
+        // Time from sendReq until WeChat answered, i.e. mostly the user's time inside WeChat.
+        String outcome = outcomeLabel(resp.errCode);
+        WechatMetrics.getInstance().record("wechat." + typeLabel(entry.type), outcome, entry.startedNanos);
+        if (entry.listener != null) {
+            entry.listener.onResponse(resp);
+            return;
+        }
+        PluginCall pending = entry.call;
         pending.setKeepAlive(false);
-        switch (resp.errCode) {
+        if (resp.errCode == BaseResp.ErrCode.ERR_OK) {
+            handleSuccessResponse(resp, pending, entry.result);
+        } else {
+            pending.reject(errorMessage(resp.errCode), String.valueOf(resp.errCode));
+        }
+    }
+
+    @Override
+    public void onWechatRequest(BaseReq baseReq) {
+        JSObject event = requestEvents.toEvent(baseReq);
+        if (event == null) {
+            Log.d(TAG, "Coalesced repeated WeChat request of type " + baseReq.getType());
+            return;
+        }
+        // Retained until a listener attaches, so the request that launched the app still reaches JS after boot.
+        notifyListeners(EVENT_WECHAT_REQUEST, event, true);
+    }
+
+    private void onMetricSample(String name, String outcome, long durationMs) {
+        if (!hasListeners(EVENT_METRICS)) {
+            return;
+        }
+        JSObject sample = new JSObject();
+        sample.put("name", name);
+        sample.put("outcome", outcome);
+        sample.put("durationMs", durationMs);
+        notifyListeners(EVENT_METRICS, sample);
+    }
+
+    private void onCallExpired(WechatPendingCalls.Entry entry) {
+        Log.w(TAG, "WeChat did not respond to request type " + entry.type + " before its deadline");
+        WechatMetrics.getInstance().record("wechat." + typeLabel(entry.type), "timeout", entry.startedNanos);
+        if (entry.listener != null) {
+            entry.listener.onExpired();
+            return;
+        }
+        entry.call.setKeepAlive(false);
+        entry.call.reject(WechatConstants.ERROR_TIMEOUT, WechatConstants.ERROR_CODE_TIMEOUT);
+    }
+
+    private static String outcomeLabel(int errCode) {
+        switch (errCode) {
             case BaseResp.ErrCode.ERR_OK:
-                handleSuccessResponse(resp, pending);
-                break;
+                return WechatMetrics.OK;
             case BaseResp.ErrCode.ERR_USER_CANCEL:
-                pending.reject("User cancelled", String.valueOf(resp.errCode));
-                break;
+                return "user_cancel";
             case BaseResp.ErrCode.ERR_AUTH_DENIED:
-                pending.reject("Authorization denied", String.valueOf(resp.errCode));
-                break;
+                return "denied";
             case BaseResp.ErrCode.ERR_SENT_FAILED:
-                pending.reject("Send request failed", String.valueOf(resp.errCode));
-                break;
+                return "send_failed";
             case BaseResp.ErrCode.ERR_UNSUPPORT:
-                pending.reject("Operation not supported by WeChat", String.valueOf(resp.errCode));
-                break;
+                return "unsupported";
+            default:
+                return WechatMetrics.ERROR;
+        }
+    }
+
+    private static String errorMessage(int errCode) {
+        switch (errCode) {
+            case BaseResp.ErrCode.ERR_USER_CANCEL:
+                return "User cancelled";
+            case BaseResp.ErrCode.ERR_AUTH_DENIED:
+                return "Authorization denied";
+            case BaseResp.ErrCode.ERR_SENT_FAILED:
+                return "Send request failed";
+            case BaseResp.ErrCode.ERR_UNSUPPORT:
+                return "Operation not supported by WeChat";
             case BaseResp.ErrCode.ERR_COMM:
             default:
-                pending.reject("WeChat error (" + resp.errCode + ")", String.valueOf(resp.errCode));
-                break;
+                return "WeChat error (" + errCode + ")";
         }
     }
 
-    @Override
-    public void onWechatRequest(BaseReq baseReq) {
-        Log.d(TAG, "Received WeChat request of type " + baseReq.getType());
+    private static String typeLabel(int type) {
+        switch (type) {
+            case REQUEST_TYPE_AUTH:
+                return "auth";
+            case REQUEST_TYPE_SHARE:
+                return "share";
+            case REQUEST_TYPE_PAY:
+                return "pay";
+            case REQUEST_TYPE_MINI_PROGRAM:
+                return "miniProgram";
+            case REQUEST_TYPE_INVOICE:
+                return "invoice";
+            default:
+                return String.valueOf(type);
+        }
     }
 
     private boolean ensureReady(PluginCall call, boolean requireAppId) {
+        awaitWarmUp();
         if (requireAppId && TextUtils.isEmpty(currentAppId)) {
             call.reject(WechatConstants.ERROR_NOT_CONFIGURED);
             return false;
@@ -332,7 +712,7 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
     }
 
     private boolean ensureWechatInstalled(PluginCall call) {
-        if (api == null || !api.isWXAppInstalled()) {
+        if (api == null || !WechatManager.getInstance().getInstallState().installed) {
             call.reject(WechatConstants.ERROR_WECHAT_NOT_INSTALLED);
             return false;
         }
@@ -357,175 +737,332 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
         return true;
     }
 
-    private SendMessageToWX.Req buildTextShare(int scene, String text) {
-        String safeText = TextUtils.isEmpty(text) ? "" : text;
+    private WXMediaMessage buildTextMessage(String text, WechatSharePlanner plan) {
+        String safeText = TextUtils.isEmpty(text) ? "" : plan.text(text);
         WXTextObject textObject = new WXTextObject();
         textObject.text = safeText;
         WXMediaMessage message = new WXMediaMessage();
         message.mediaObject = textObject;
-        message.description = safeText;
+        message.description = plan.description(safeText);
+        return message;
+    }
 
-        SendMessageToWX.Req req = new SendMessageToWX.Req();
-        req.transaction = buildTransaction("text");
-        req.message = message;
-        req.scene = scene;
-        return req;
+    private SendMessageToWX.Req buildRichShare(
+        JSObject options,
+        String type,
+        int scene,
+        WechatSharePlanner plan,
+        WechatCancellationToken token,
+        WechatScheduler.Priority priority
+    ) throws IOException {
+        return newShareRequest(type, scene, buildRichMessage(options, type, plan, token, priority));
     }
 
-    private SendMessageToWX.Req buildRichShare(PluginCall call, String type, int scene) throws IOException {
+    /**
+     * Builds the message for a non-text share described by {@code options}, the fields of a share call, fitted to
+     * WeChat's limits by {@code plan}.
+     */
+    private WXMediaMessage buildRichMessage(
+        JSObject options,
+        String type,
+        WechatSharePlanner plan,
+        WechatCancellationToken token,
+        WechatScheduler.Priority priority
+    ) throws IOException {
         Context context = getContext();
         if (context == null) {
             throw new IllegalStateException("Context unavailable.");
         }
         WXMediaMessage message = new WXMediaMessage();
+        WechatMediaResolver.Batch media = mediaResolver.newBatch(context, token, priority);
         switch (type) {
             case "image": {
-                String imageUrl = call.getString("imageUrl");
+                String imageUrl = options.getString("imageUrl");
                 if (TextUtils.isEmpty(imageUrl)) {
                     throw new IllegalArgumentException("imageUrl is required for image shares.");
                 }
-                Bitmap bitmap = WechatImageHelper.loadBitmap(context, imageUrl);
-                if (bitmap == null) {
-                    throw new IOException("Unable to decode image.");
+                int supportApi = WechatManager.getInstance().getInstallState().supportApi;
+                if (supportApi >= WechatImageStager.FILE_PROVIDER_MIN_SUPPORT_API) {
+                    // Hand WeChat a file URI so the full image never crosses the binder as encoded bytes.
+                    media.stagedImage(imageUrl, (uri) -> {
+                        WXImageObject imageObject = new WXImageObject();
+                        imageObject.imagePath = uri;
+                        message.mediaObject = imageObject;
+                    });
+                    media.thumbnail(
+                        imageUrl,
+                        plan.thumbMaxSize,
+                        plan.thumbBytes,
+                        (thumb) -> message.thumbData = plan.thumb(thumb)
+                    );
+                    break;
                 }
-                WXImageObject imageObject = new WXImageObject(bitmap);
-                message.mediaObject = imageObject;
-                message.thumbData = WechatImageHelper.buildThumbnail(WechatImageHelper.scaleDown(bitmap, 1280));
+                media.bitmap(
+                    imageUrl,
+                    WechatImageHelper.IMAGE_MAX_SIZE,
+                    (bitmap) -> {
+                        if (bitmap == null) {
+                            throw new IOException("Unable to decode image.");
+                        }
+                        // WXImageObject compresses the pixels up front, so the bitmap is free again right after.
+                        WXImageObject imageObject = new WXImageObject(bitmap);
+                        Bitmap thumb = WechatImageHelper.scaleDown(bitmap, plan.thumbMaxSize);
+                        byte[] thumbData = WechatImageHelper.buildThumbnail(thumb, plan.thumbBytes);
+                        WechatBitmapPool.getInstance().release(thumb);
+                        return new EncodedImage(imageObject, thumbData);
+                    },
+                    (image) -> {
+                        message.mediaObject = image.object;
+                        message.thumbData = plan.thumb(image.thumbData);
+                    }
+                );
                 break;
             }
             case "link": {
-                String link = call.getString("link");
+                String link = options.getString("link");
                 if (TextUtils.isEmpty(link)) {
                     throw new IllegalArgumentException("link is required for link shares.");
                 }
                 WXWebpageObject webpage = new WXWebpageObject();
-                webpage.webpageUrl = link;
+                webpage.webpageUrl = plan.url("link", link);
                 message.mediaObject = webpage;
-                message.title = call.getString("title");
-                message.description = call.getString("description");
-                attachThumbIfPresent(context, message, call.getString("thumbUrl"));
+                message.title = plan.title(options.getString("title"));
+                message.description = plan.description(options.getString("description"));
+                attachThumbIfPresent(media, message, options.getString("thumbUrl"), plan);
                 break;
             }
             case "music": {
-                String mediaUrl = call.getString("mediaUrl");
+                String mediaUrl = options.getString("mediaUrl");
                 if (TextUtils.isEmpty(mediaUrl)) {
                     throw new IllegalArgumentException("mediaUrl is required for music shares.");
                 }
                 WXMusicObject music = new WXMusicObject();
-                music.musicUrl = mediaUrl;
+                music.musicUrl = plan.url("mediaUrl", mediaUrl);
                 message.mediaObject = music;
-                message.title = call.getString("title");
-                message.description = call.getString("description");
-                attachThumbIfPresent(context, message, call.getString("thumbUrl"));
+                message.title = plan.title(options.getString("title"));
+                message.description = plan.description(options.getString("description"));
+                attachThumbIfPresent(media, message, options.getString("thumbUrl"), plan);
                 break;
             }
             case "video": {
-                String videoUrl = call.getString("mediaUrl");
+                String videoUrl = options.getString("mediaUrl");
                 if (TextUtils.isEmpty(videoUrl)) {
                     throw new IllegalArgumentException("mediaUrl is required for video shares.");
                 }
                 WXVideoObject video = new WXVideoObject();
-                video.videoUrl = videoUrl;
+                video.videoUrl = plan.url("mediaUrl", videoUrl);
                 message.mediaObject = video;
-                message.title = call.getString("title");
-                message.description = call.getString("description");
-                attachThumbIfPresent(context, message, call.getString("thumbUrl"));
+                message.title = plan.title(options.getString("title"));
+                message.description = plan.description(options.getString("description"));
+                attachThumbIfPresent(media, message, options.getString("thumbUrl"), plan);
                 break;
             }
             case "miniprogram": {
-                String username = call.getString("miniProgramUsername");
+                String username = options.getString("miniProgramUsername");
                 if (TextUtils.isEmpty(username)) {
                     throw new IllegalArgumentException("miniProgramUsername is required for mini program shares.");
                 }
                 WXMiniProgramObject mini = new WXMiniProgramObject();
                 mini.userName = username;
-                mini.path = call.getString("miniProgramPath");
-                mini.miniprogramType = call.getInt("miniProgramType", MINI_PROGRAM_TYPE_RELEASE);
-                mini.webpageUrl = call.getString("miniProgramWebPageUrl");
+                mini.path = options.getString("miniProgramPath");
+                mini.miniprogramType = options.getInteger("miniProgramType", MINI_PROGRAM_TYPE_RELEASE);
+                mini.webpageUrl = plan.url("miniProgramWebPageUrl", options.getString("miniProgramWebPageUrl"));
                 message.mediaObject = mini;
-                message.title = call.getString("title");
-                message.description = call.getString("description");
-                String hdImage = call.getString("imageUrl");
-                if (!TextUtils.isEmpty(hdImage)) {
-                    Bitmap bitmap = WechatImageHelper.loadBitmap(context, hdImage);
-                    if (bitmap != null) {
-                        message.thumbData = WechatImageHelper.buildThumbnail(WechatImageHelper.scaleDown(bitmap, 512));
-                    }
-                }
-                attachThumbIfPresent(context, message, call.getString("thumbUrl"));
-                scene = SendMessageToWX.Req.WXSceneSession;
+                message.title = plan.title(options.getString("title"));
+                message.description = plan.description(options.getString("description"));
+                // thumbUrl replaces the cover built from imageUrl, so only fetch imageUrl when there is no thumbUrl.
+                String thumbUrl = options.getString("thumbUrl");
+                String coverSource = TextUtils.isEmpty(thumbUrl) ? options.getString("imageUrl") : thumbUrl;
+                attachThumbIfPresent(media, message, coverSource, plan);
                 break;
             }
             default:
                 throw new IllegalArgumentException("Unsupported share type: " + type);
         }
+        media.await();
+        return message;
+    }
 
+    private SendMessageToWX.Req newShareRequest(String type, int scene, WXMediaMessage message) {
         SendMessageToWX.Req req = new SendMessageToWX.Req();
         req.transaction = buildTransaction(type);
         req.message = message;
-        req.scene = scene;
+        // Mini program cards can only be shared to chats.
+        req.scene = "miniprogram".equals(type) ? SendMessageToWX.Req.WXSceneSession : scene;
         return req;
     }
 
-    private void attachThumbIfPresent(Context context, WXMediaMessage message, String thumbSource) throws IOException {
-        if (TextUtils.isEmpty(thumbSource)) {
+    private void attachThumbIfPresent(
+        WechatMediaResolver.Batch media,
+        WXMediaMessage message,
+        String thumbSource,
+        WechatSharePlanner plan
+    ) {
+        media.thumbnail(thumbSource, plan.thumbMaxSize, plan.thumbBytes, (thumbData) -> {
+            if (thumbData != null) {
+                message.thumbData = plan.thumb(thumbData);
+            }
+        });
+    }
+
+    /**
+     * Runs media work for {@code call} on the coordinator lane, which waits while the lanes fetch and decode. The
+     * work can be cancelled through {@code cancelShare} with the call's {@code requestId}, which rejects the call
+     * right away. Whatever {@code task} returns to settle the call only runs if the work was not cancelled first.
+     */
+    private void submitMediaWork(PluginCall call, WechatScheduler.Priority priority, MediaTask task) {
+        String requestId = call.getString("requestId");
+        String key = TextUtils.isEmpty(requestId) ? call.getCallbackId() : requestId;
+        MediaWork work = new MediaWork(call, new WechatCancellationToken());
+        if (mediaWork.putIfAbsent(key, work) != null) {
+            call.reject("requestId is already in use.");
             return;
         }
-        Bitmap bitmap = WechatImageHelper.loadBitmap(context, thumbSource);
-        if (bitmap != null) {
-            message.thumbData = WechatImageHelper.buildThumbnail(WechatImageHelper.scaleDown(bitmap, 512));
+        scheduler.submit(WechatScheduler.Lane.COORDINATOR, priority, work.token, () -> {
+            long started = WechatMetrics.start();
+            String outcome = WechatMetrics.ERROR;
+            boolean claimed = false;
+            try {
+                Runnable settle = task.run(work.token);
+                // cancelShare removes the work first when it wins the race, and has rejected the call already.
+                claimed = mediaWork.remove(key, work);
+                if (claimed) {
+                    settle.run();
+                    outcome = WechatMetrics.OK;
+                } else {
+                    outcome = WechatMetrics.CANCELLED;
+                }
+            } catch (IOException | RuntimeException | OutOfMemoryError ex) {
+                if (claimed || mediaWork.remove(key, work)) {
+                    rejectBuild(call, ex);
+                } else {
+                    outcome = WechatMetrics.CANCELLED;
+                }
+            } finally {
+                WechatMetrics.getInstance().record("build." + call.getMethodName(), outcome, started);
+            }
+            return null;
+        });
+    }
+
+    private static void rejectBuild(PluginCall call, Throwable ex) {
+        if (ex instanceof IllegalArgumentException) {
+            call.reject(ex.getMessage());
+        } else if (ex instanceof WechatMediaTooLargeException) {
+            call.reject(
+                WechatConstants.ERROR_MEDIA_TOO_LARGE,
+                WechatConstants.ERROR_CODE_MEDIA_TOO_LARGE,
+                (WechatMediaTooLargeException) ex
+            );
+        } else if (ex instanceof IOException) {
+            call.reject(WechatConstants.ERROR_BITMAP_LOAD, (IOException) ex);
+        } else if (ex instanceof RuntimeException) {
+            Log.e(TAG, "Failed to build share", ex);
+            String message = ex.getMessage() != null ? ex.getMessage() : WechatConstants.ERROR_REQUEST_FAILED;
+            call.reject(message, (RuntimeException) ex);
+        } else {
+            Log.e(TAG, "Out of memory while building share", ex);
+            call.reject(WechatConstants.ERROR_BITMAP_LOAD);
+        }
+    }
+
+    private static List<JSObject> parseShareItems(JSArray array) {
+        if (array == null || array.length() == 0) {
+            return null;
+        }
+        List<JSObject> items = new ArrayList<>(array.length());
+        try {
+            for (int i = 0; i < array.length(); i++) {
+                JSObject item = JSObject.fromJSONObject(array.getJSONObject(i));
+                if (item.getInteger("scene") == null || TextUtils.isEmpty(item.getString("type"))) {
+                    return null;
+                }
+                items.add(item);
+            }
+        } catch (JSONException ex) {
+            return null;
+        }
+        return items;
+    }
+
+    /** Identifies what an item shares regardless of its scene, so one build can serve several destinations. */
+    private static String contentKey(JSObject item) {
+        StringBuilder key = new StringBuilder();
+        for (String field : SHARE_CONTENT_FIELDS) {
+            key.append(item.opt(field)).append('\u0000');
+        }
+        return key.toString();
+    }
+
+    private PreparedShare takePreparedShare(String preparedId) {
+        PreparedShare prepared;
+        synchronized (preparedShares) {
+            prepared = preparedShares.remove(preparedId);
+        }
+        if (prepared == null || prepared.expiresAt <= SystemClock.elapsedRealtime()) {
+            return null;
         }
+        return prepared;
     }
 
-    private void sendShareRequest(PluginCall call, SendMessageToWX.Req req) {
+    private void evictPreparedShare(String preparedId, PreparedShare prepared) {
+        synchronized (preparedShares) {
+            if (preparedShares.get(preparedId) == prepared) {
+                preparedShares.remove(preparedId);
+            }
+        }
+    }
+
+    private void sendShareRequest(PluginCall call, SendMessageToWX.Req req, JSArray adjustments) {
         if (req == null) {
             call.reject(WechatConstants.ERROR_INVALID_ARGUMENTS);
             return;
         }
-        if (!registerPendingCall(REQUEST_TYPE_SHARE, call)) {
-            return;
-        }
-        sendRequestOrReject(req, REQUEST_TYPE_SHARE, call);
+        JSObject result = new JSObject();
+        result.put("adjustments", adjustments);
+        sendRequestOrReject(req, REQUEST_TYPE_SHARE, call, result);
     }
 
-    private void sendRequestOrReject(Object request, int requestType, PluginCall call) {
-        if (api == null) {
+    private void sendRequestOrReject(BaseReq request, int requestType, PluginCall call) {
+        sendRequestOrReject(request, requestType, call, null);
+    }
+
+    /** {@code result} resolves the call when WeChat's response has nothing to return. */
+    private void sendRequestOrReject(BaseReq request, int requestType, PluginCall call, JSObject result) {
+        // initialize() can swap the API from another thread, so check and send through the same instance.
+        IWXAPI target = api;
+        if (target == null) {
             call.reject(WechatConstants.ERROR_SDK_NOT_READY);
-            pendingCalls.remove(requestType);
             return;
         }
-        boolean sent = false;
-        if (request instanceof SendMessageToWX.Req) {
-            sent = api.sendReq((SendMessageToWX.Req) request);
-        } else if (request instanceof SendAuth.Req) {
-            sent = api.sendReq((SendAuth.Req) request);
-        } else if (request instanceof PayReq) {
-            sent = api.sendReq((PayReq) request);
-        } else if (request instanceof WXLaunchMiniProgram.Req) {
-            sent = api.sendReq((WXLaunchMiniProgram.Req) request);
-        } else if (request instanceof ChooseCardFromWXCardPackage.Req) {
-            sent = api.sendReq((ChooseCardFromWXCardPackage.Req) request);
+        if (TextUtils.isEmpty(request.transaction)) {
+            request.transaction = buildTransaction(String.valueOf(requestType));
         }
-
-        if (!sent) {
-            pendingCalls.remove(requestType);
+        // Register before sending: WeChat can answer before sendReq returns.
+        pendingCalls.register(request.transaction, requestType, call, result);
+        call.setKeepAlive(true);
+        if (!dispatch(target, request, requestType)) {
             call.setKeepAlive(false);
             call.reject(WechatConstants.ERROR_REQUEST_FAILED);
-        } else {
-            call.setKeepAlive(true);
         }
     }
 
-    private boolean registerPendingCall(int type, PluginCall call) {
-        if (pendingCalls.containsKey(type)) {
-            call.reject(WechatConstants.ERROR_OPERATION_IN_PROGRESS);
-            return false;
+    /** Sends an already registered request, dropping its registration when WeChat refuses it. */
+    private boolean dispatch(IWXAPI target, BaseReq request, int requestType) {
+        long started = WechatMetrics.start();
+        boolean sent = target.sendReq(request);
+        WechatMetrics.getInstance().record(
+            "send." + typeLabel(requestType),
+            sent ? WechatMetrics.OK : WechatMetrics.ERROR,
+            started
+        );
+        if (!sent) {
+            pendingCalls.remove(request.transaction);
         }
-        pendingCalls.put(type, call);
-        return true;
+        return sent;
     }
 
-    private void handleSuccessResponse(BaseResp resp, PluginCall call) {
+    private void handleSuccessResponse(BaseResp resp, PluginCall call, JSObject fallback) {
         if (resp instanceof SendAuth.Resp) {
             SendAuth.Resp authResp = (SendAuth.Resp) resp;
             JSObject result = new JSObject();
@@ -542,36 +1079,268 @@ public class CapacitorWechatPlugin extends Plugin implements WechatResponseListe
             return;
         }
         if (resp instanceof ChooseCardFromWXCardPackage.Resp) {
-            ChooseCardFromWXCardPackage.Resp invoiceResp = (ChooseCardFromWXCardPackage.Resp) resp;
-            JSArray cards = parseCardList(invoiceResp.cardItemList);
-            JSObject result = new JSObject();
-            result.put("cards", cards);
-            call.resolve(result);
+            String cardItemList = ((ChooseCardFromWXCardPackage.Resp) resp).cardItemList;
+            boolean rawFields = call.getBoolean("rawFields", false);
+            // Responses arrive on the main thread and a card selection can be large, so convert it on a worker.
+            scheduler.submit(WechatScheduler.Lane.CPU, WechatScheduler.Priority.INTERACTIVE, null, () -> {
+                long started = WechatMetrics.start();
+                JSObject result = new JSObject();
+                result.put("cards", WechatCardList.parse(cardItemList, rawFields));
+                WechatMetrics.getInstance().record("marshal.invoice", WechatMetrics.OK, started);
+                call.resolve(result);
+                return null;
+            });
             return;
         }
-        call.resolve();
+        if (fallback != null) {
+            call.resolve(fallback);
+        } else {
+            call.resolve();
+        }
+    }
+
+    private String buildTransaction(String type) {
+        // The type prefix only aids debugging; the UUID keeps concurrent requests apart.
+        return (type == null ? "" : type) + "-" + UUID.randomUUID();
+    }
+
+    private interface MediaTask {
+        /** Builds the result and returns what settles the call with it. */
+        Runnable run(WechatCancellationToken token) throws IOException;
     }
 
-    private JSArray parseCardList(String cardItemList) {
-        JSArray array = new JSArray();
-        if (TextUtils.isEmpty(cardItemList)) {
-            return array;
+    /** A full image and its thumbnail, encoded on the CPU lane. */
+    private static final class EncodedImage {
+
+        final WXImageObject object;
+        final byte[] thumbData;
+
+        EncodedImage(WXImageObject object, byte[] thumbData) {
+            this.object = object;
+            this.thumbData = thumbData;
         }
-        try {
-            JSONArray jsonArray = new JSONArray(cardItemList);
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSObject card = new JSObject();
-                card.put("cardId", jsonArray.getJSONObject(i).optString("card_id"));
-                card.put("encryptCode", jsonArray.getJSONObject(i).optString("encrypt_code"));
-                array.put(card);
+    }
+
+    private static final class MediaWork {
+
+        final PluginCall call;
+        final WechatCancellationToken token;
+
+        MediaWork(PluginCall call, WechatCancellationToken token) {
+            this.call = call;
+            this.token = token;
+        }
+    }
+
+    /**
+     * Shares a list of items one after another, since WeChat handles one share at a time. The next item is built
+     * while the current one is open in WeChat, and items that only differ in scene share one build. State is only
+     * touched on the main thread; builds run on the coordinator lane and post their result back.
+     */
+    private final class ShareBatch implements WechatPendingCalls.ResponseListener {
+
+        final MediaWork work;
+        private final String key;
+        private final List<JSObject> items;
+        private final boolean stopOnError;
+        private final String[] contentKeys;
+        private final Map<String, Integer> lastUse = new HashMap<>();
+        // Built messages, or the exception that failed the build, by content key.
+        private final Map<String, Object> built = new HashMap<>();
+        private final Map<String, JSArray> adjustments = new HashMap<>();
+        private final Set<String> building = new HashSet<>();
+        private final JSArray results = new JSArray();
+        private int current;
+        private boolean inWechat;
+
+        ShareBatch(PluginCall call, String key, List<JSObject> items, boolean stopOnError) {
+            this.work = new MediaWork(call, new WechatCancellationToken());
+            this.key = key;
+            this.items = items;
+            this.stopOnError = stopOnError;
+            this.contentKeys = new String[items.size()];
+            for (int i = 0; i < contentKeys.length; i++) {
+                contentKeys[i] = contentKey(items.get(i));
+                lastUse.put(contentKeys[i], i);
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to parse card list", e);
         }
-        return array;
+
+        /** Sends the current item once it is built and starts building the one after it. */
+        void advance() {
+            if (work.token.isCancelled()) {
+                discardBuilt();
+                return;
+            }
+            if (current == items.size()) {
+                finish();
+                return;
+            }
+            prepare(current, WechatScheduler.Priority.INTERACTIVE);
+            Object message = built.get(contentKeys[current]);
+            if (message == null) {
+                // onBuilt() comes back here.
+                return;
+            }
+            if (message instanceof Exception) {
+                complete(buildFailure((Exception) message));
+                return;
+            }
+            JSObject item = items.get(current);
+            SendMessageToWX.Req req = newShareRequest(
+                item.getString("type"),
+                item.getInteger("scene"),
+                (WXMediaMessage) message
+            );
+            prepare(current + 1, WechatScheduler.Priority.PREFETCH);
+            IWXAPI target = api;
+            if (target == null) {
+                complete(failure(WechatConstants.ERROR_SDK_NOT_READY, null));
+                return;
+            }
+            inWechat = true;
+            pendingCalls.register(req.transaction, REQUEST_TYPE_SHARE, this);
+            if (!dispatch(target, req, REQUEST_TYPE_SHARE)) {
+                complete(failure(WechatConstants.ERROR_REQUEST_FAILED, null));
+            }
+        }
+
+        @Override
+        public void onResponse(BaseResp resp) {
+            if (resp.errCode == BaseResp.ErrCode.ERR_OK) {
+                complete(itemResult(true));
+            } else {
+                complete(failure(errorMessage(resp.errCode), String.valueOf(resp.errCode)));
+            }
+        }
+
+        @Override
+        public void onExpired() {
+            complete(failure(WechatConstants.ERROR_TIMEOUT, WechatConstants.ERROR_CODE_TIMEOUT));
+        }
+
+        private void prepare(int index, WechatScheduler.Priority priority) {
+            if (index >= items.size()) {
+                return;
+            }
+            String contentKey = contentKeys[index];
+            if (built.containsKey(contentKey) || !building.add(contentKey)) {
+                return;
+            }
+            JSObject item = items.get(index);
+            String type = item.getString("type");
+            WechatSharePlanner plan = WechatSharePlanner.forType(type);
+            if ("text".equals(type)) {
+                building.remove(contentKey);
+                built.put(contentKey, buildTextMessage(item.getString("text"), plan));
+                adjustments.put(contentKey, plan.getAdjustments());
+                return;
+            }
+            scheduler.submit(WechatScheduler.Lane.COORDINATOR, priority, work.token, () -> {
+                long started = WechatMetrics.start();
+                Object message;
+                try {
+                    message = buildRichMessage(item, type, plan, work.token, priority);
+                    WechatMetrics.getInstance().record("build.shareBatch", WechatMetrics.OK, started);
+                } catch (IOException | RuntimeException ex) {
+                    message = ex;
+                    String outcome = work.token.isCancelled() ? WechatMetrics.CANCELLED : WechatMetrics.ERROR;
+                    WechatMetrics.getInstance().record("build.shareBatch", outcome, started);
+                } catch (OutOfMemoryError ex) {
+                    // Fails the item like any other media that could not be loaded.
+                    message = new IOException("Out of memory while building share", ex);
+                    WechatMetrics.getInstance().record("build.shareBatch", WechatMetrics.ERROR, started);
+                }
+                Object result = message;
+                mainHandler.post(() -> onBuilt(contentKey, result, plan.getAdjustments()));
+                return null;
+            });
+        }
+
+        private void onBuilt(String contentKey, Object message, JSArray changes) {
+            building.remove(contentKey);
+            built.put(contentKey, message);
+            adjustments.put(contentKey, changes);
+            if (!inWechat) {
+                advance();
+            }
+        }
+
+        private void complete(JSObject result) {
+            inWechat = false;
+            if (work.token.isCancelled()) {
+                discardBuilt();
+                return;
+            }
+            results.put(result);
+            if (lastUse.get(contentKeys[current]) == current) {
+                built.remove(contentKeys[current]);
+                adjustments.remove(contentKeys[current]);
+            }
+            current++;
+            if (stopOnError && !result.getBoolean("success", false)) {
+                discardBuilt();
+                while (current < items.size()) {
+                    results.put(failure(WechatConstants.ERROR_SKIPPED, WechatConstants.ERROR_CODE_SKIPPED));
+                    current++;
+                }
+            }
+            advance();
+        }
+
+        private void finish() {
+            // cancelShare removes the work first when it wins the race, and has rejected the call already.
+            if (!mediaWork.remove(key, work)) {
+                return;
+            }
+            JSObject result = new JSObject();
+            result.put("results", results);
+            work.call.resolve(result);
+        }
+
+        private JSObject buildFailure(Exception ex) {
+            if (ex instanceof WechatMediaTooLargeException) {
+                return failure(WechatConstants.ERROR_MEDIA_TOO_LARGE, WechatConstants.ERROR_CODE_MEDIA_TOO_LARGE);
+            }
+            if (ex instanceof IOException) {
+                return failure(WechatConstants.ERROR_BITMAP_LOAD, null);
+            }
+            return failure(ex.getMessage(), null);
+        }
+
+        private JSObject failure(String error, String code) {
+            JSObject result = itemResult(false);
+            result.put("error", error);
+            if (code != null) {
+                result.put("code", code);
+            }
+            return result;
+        }
+
+        private JSObject itemResult(boolean success) {
+            JSArray changes = current < items.size() ? adjustments.get(contentKeys[current]) : null;
+            JSObject result = new JSObject();
+            result.put("index", current);
+            result.put("success", success);
+            result.put("adjustments", changes != null ? changes : new JSArray());
+            return result;
+        }
+
+        private void discardBuilt() {
+            built.clear();
+            adjustments.clear();
+        }
     }
 
-    private String buildTransaction(String type) {
-        return (type == null ? "" : type) + System.currentTimeMillis();
+    private static final class PreparedShare {
+
+        final SendMessageToWX.Req request;
+        final JSArray adjustments;
+        final long expiresAt;
+
+        PreparedShare(SendMessageToWX.Req request, JSArray adjustments, long expiresAt) {
+            this.request = request;
+            this.adjustments = adjustments;
+            this.expiresAt = expiresAt;
+        }
     }
 }
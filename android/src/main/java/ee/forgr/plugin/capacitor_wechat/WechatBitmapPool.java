@@ -0,0 +1,183 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * Released share bitmaps kept for reuse as {@code inBitmap} decode targets and as scale canvases, so repeated
+ * shares stop allocating a pixel buffer per step. Bitmaps are bucketed by allocation size in powers of two and a
+ * request is served from its own bucket or the next one up, which bounds the memory a reused buffer wastes. The
+ * pool holds at most {@link #MAX_BYTES} and shrinks under memory pressure like {@link WechatThumbnailCache}.
+ */
+final class WechatBitmapPool implements ComponentCallbacks2 {
+
+    static final int MAX_BYTES = (int) Math.min(16L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+
+    private static final WechatBitmapPool INSTANCE = new WechatBitmapPool();
+
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    // Release order across buckets; the oldest bitmap is evicted first.
+    private final ArrayDeque<Bitmap> released = new ArrayDeque<>();
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private int totalBytes;
+    private boolean registered;
+
+    private WechatBitmapPool() {}
+
+    static WechatBitmapPool getInstance() {
+        return INSTANCE;
+    }
+
+    synchronized void register(Context context) {
+        if (!registered) {
+            context.getApplicationContext().registerComponentCallbacks(this);
+            registered = true;
+        }
+    }
+
+    synchronized void unregister(Context context) {
+        if (registered) {
+            context.getApplicationContext().unregisterComponentCallbacks(this);
+            registered = false;
+        }
+    }
+
+    /** Returns a pooled bitmap with room for at least {@code bytes} of pixels, or {@code null}. */
+    synchronized Bitmap take(int bytes) {
+        int bucket = bucketOf(bytes);
+        Bitmap found = takeFrom(buckets.get(bucket), bytes);
+        if (found == null) {
+            found = takeFrom(buckets.get(bucket + 1), bytes);
+        }
+        if (found != null) {
+            released.remove(found);
+            totalBytes -= found.getAllocationByteCount();
+        }
+        return found;
+    }
+
+    /** Returns a cleared, mutable {@code width}x{@code height} bitmap, reusing a pooled buffer when one fits. */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width * height * bytesPerPixel(config));
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Draws {@code source} filtered into a pooled {@code width}x{@code height} bitmap. The caller still owns
+     * {@code source}.
+     */
+    Bitmap scale(Bitmap source, int width, int height) {
+        Bitmap.Config config = source.getConfig() == Bitmap.Config.RGB_565
+            ? Bitmap.Config.RGB_565
+            : Bitmap.Config.ARGB_8888;
+        Bitmap target = get(width, height, config);
+        target.setHasAlpha(source.hasAlpha());
+        new Canvas(target).drawBitmap(source, null, new Rect(0, 0, width, height), paint);
+        return target;
+    }
+
+    /** Hands {@code bitmap} back for reuse; bitmaps that cannot be reused are recycled instead. */
+    void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || size > MAX_BYTES / 2) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            int bucket = bucketOf(size);
+            ArrayDeque<Bitmap> entries = buckets.get(bucket);
+            if (entries == null) {
+                entries = new ArrayDeque<>();
+                buckets.put(bucket, entries);
+            }
+            entries.add(bitmap);
+            released.add(bitmap);
+            totalBytes += size;
+            trimToSize(MAX_BYTES);
+        }
+    }
+
+    synchronized void clear() {
+        trimToSize(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (this) {
+                trimToSize(MAX_BYTES / 2);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    private Bitmap takeFrom(ArrayDeque<Bitmap> entries, int bytes) {
+        if (entries == null) {
+            return null;
+        }
+        Iterator<Bitmap> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Bitmap candidate = iterator.next();
+            if (candidate.getAllocationByteCount() >= bytes) {
+                iterator.remove();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private void trimToSize(int maxBytes) {
+        while (totalBytes > maxBytes && !released.isEmpty()) {
+            Bitmap eldest = released.removeFirst();
+            int bucket = bucketOf(eldest.getAllocationByteCount());
+            ArrayDeque<Bitmap> entries = buckets.get(bucket);
+            entries.remove(eldest);
+            if (entries.isEmpty()) {
+                buckets.remove(bucket);
+            }
+            totalBytes -= eldest.getAllocationByteCount();
+            eldest.recycle();
+        }
+    }
+
+    /** Bucket {@code n} holds allocations in {@code (2^(n-1), 2^n]}. */
+    private static int bucketOf(int bytes) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(1, bytes) - 1);
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,68 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cancellation flag shared by all media work started for one plugin call. Listeners let blocking work such as an
+ * open HTTP connection be aborted from another thread.
+ */
+final class WechatCancellationToken {
+
+    /** Raised by media work that stopped because its call was cancelled. */
+    static final class CancelledException extends InterruptedIOException {
+
+        CancelledException() {
+            super("Cancelled");
+        }
+    }
+
+    interface Registration {
+        void unregister();
+    }
+
+    private final List<Runnable> listeners = new ArrayList<>();
+    private boolean cancelled;
+
+    void cancel() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    void throwIfCancelled() throws CancelledException {
+        if (isCancelled()) {
+            throw new CancelledException();
+        }
+    }
+
+    /** Runs {@code listener} on cancellation, immediately if the token is already cancelled. */
+    Registration onCancel(Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return () -> {
+                    synchronized (WechatCancellationToken.this) {
+                        listeners.remove(listener);
+                    }
+                };
+            }
+        }
+        listener.run();
+        return () -> {};
+    }
+}
@@ -0,0 +1,119 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+import java.io.IOException;
+import java.io.StringReader;
+import org.json.JSONObject;
+
+/**
+ * Converts the {@code cardItemList} JSON of an invoice selection into the JS result in a single streaming pass,
+ * without building an intermediate {@code JSONArray}.
+ */
+final class WechatCardList {
+
+    private static final String TAG = "CapacitorWechat";
+
+    private WechatCardList() {}
+
+    /**
+     * Returns one {@code {cardId, encryptCode}} object per card. With {@code rawFields} each card also carries every
+     * field WeChat sent under {@code fields}, copied as-is. Malformed input yields the cards read before the error.
+     */
+    static JSArray parse(String cardItemList, boolean rawFields) {
+        JSArray cards = new JSArray();
+        if (cardItemList == null || cardItemList.isEmpty()) {
+            return cards;
+        }
+        try (JsonReader reader = new JsonReader(new StringReader(cardItemList))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    cards.put(readCard(reader, rawFields));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endArray();
+        } catch (IOException | IllegalStateException | NumberFormatException ex) {
+            Log.e(TAG, "Failed to parse card list", ex);
+        }
+        return cards;
+    }
+
+    private static JSObject readCard(JsonReader reader, boolean rawFields) throws IOException {
+        JSObject fields = rawFields ? new JSObject() : null;
+        String cardId = "";
+        String encryptCode = "";
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            boolean known = "card_id".equals(name) || "encrypt_code".equals(name);
+            if (fields == null && !known) {
+                reader.skipValue();
+                continue;
+            }
+            Object value = readValue(reader);
+            if (fields != null) {
+                fields.put(name, value);
+            }
+            if (known && !(value instanceof JSObject) && !(value instanceof JSArray) && value != JSONObject.NULL) {
+                if ("card_id".equals(name)) {
+                    cardId = String.valueOf(value);
+                } else {
+                    encryptCode = String.valueOf(value);
+                }
+            }
+        }
+        reader.endObject();
+
+        JSObject card = new JSObject();
+        card.put("cardId", cardId);
+        card.put("encryptCode", encryptCode);
+        if (fields != null) {
+            card.put("fields", fields);
+        }
+        return card;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT: {
+                JSObject object = new JSObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    object.put(reader.nextName(), readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            }
+            case BEGIN_ARRAY: {
+                JSArray array = new JSArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            }
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER: {
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException ex) {
+                    return Double.parseDouble(number);
+                }
+            }
+            default:
+                return reader.nextString();
+        }
+    }
+}
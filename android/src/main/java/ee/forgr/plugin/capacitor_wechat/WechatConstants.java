@@ -10,10 +10,19 @@ final class WechatConstants {
     static final String ERROR_APP_ID_MISSING = "Missing appId parameter.";
     static final String ERROR_SDK_NOT_READY = "Failed to initialize the WeChat SDK.";
     static final String ERROR_WECHAT_NOT_INSTALLED = "WeChat is not installed on this device.";
-    static final String ERROR_OPERATION_IN_PROGRESS = "Another WeChat request is already in progress.";
     static final String ERROR_INVALID_ARGUMENTS = "Invalid or missing arguments.";
     static final String ERROR_REQUEST_FAILED = "Failed to send request to WeChat.";
     static final String ERROR_BITMAP_LOAD = "Unable to load media content for sharing.";
+    static final String ERROR_MEDIA_TOO_LARGE = "Media content exceeds the size limit for sharing.";
+    static final String ERROR_PREPARED_SHARE_NOT_FOUND = "Prepared share not found or expired.";
+    static final String ERROR_CANCELLED = "The request was cancelled.";
+    static final String ERROR_TIMEOUT = "WeChat did not respond before the request deadline.";
+    static final String ERROR_SKIPPED = "Skipped because an earlier item failed.";
+
+    static final String ERROR_CODE_CANCELLED = "CANCELLED";
+    static final String ERROR_CODE_TIMEOUT = "TIMEOUT";
+    static final String ERROR_CODE_MEDIA_TOO_LARGE = "MEDIA_TOO_LARGE";
+    static final String ERROR_CODE_SKIPPED = "SKIPPED";
 
     private WechatConstants() {}
 }
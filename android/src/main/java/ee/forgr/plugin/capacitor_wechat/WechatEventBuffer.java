@@ -0,0 +1,116 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import com.tencent.mm.opensdk.modelbase.BaseReq;
+import com.tencent.mm.opensdk.modelbase.BaseResp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds WeChat responses and requests that arrive while no plugin instance is listening. The buffer keeps at most
+ * {@link #MAX_EVENTS} events for {@link #TTL_MS} each; a newer event for the same transaction replaces the older one.
+ */
+final class WechatEventBuffer {
+
+    static final int MAX_EVENTS = 16;
+    static final long TTL_MS = 5 * 60 * 1000;
+
+    /** Counters since the process started. */
+    static final class Stats {
+
+        final int buffered;
+        final long replayed;
+        final long dropped;
+
+        Stats(int buffered, long replayed, long dropped) {
+            this.buffered = buffered;
+            this.replayed = replayed;
+            this.dropped = dropped;
+        }
+    }
+
+    private static final class Event {
+
+        final BaseResp response;
+        final BaseReq request;
+        final long receivedAt = SystemClock.elapsedRealtime();
+
+        Event(BaseResp response, BaseReq request) {
+            this.response = response;
+            this.request = request;
+        }
+    }
+
+    // Insertion order is arrival order, which is also replay order.
+    private final Map<String, Event> events = new LinkedHashMap<>();
+    private long anonymousKeys;
+    private long replayed;
+    private long dropped;
+
+    synchronized void add(BaseResp response) {
+        put(key("resp", response.getType(), response.transaction), new Event(response, null));
+    }
+
+    synchronized void add(BaseReq request) {
+        put(key("req", request.getType(), request.transaction), new Event(null, request));
+    }
+
+    /** Replays every live event to {@code listener} in arrival order and empties the buffer. */
+    void drainTo(WechatResponseListener listener) {
+        List<Event> live;
+        synchronized (this) {
+            expire();
+            live = new ArrayList<>(events.values());
+            events.clear();
+            replayed += live.size();
+        }
+        for (Event event : live) {
+            if (event.response != null) {
+                listener.onWechatResponse(event.response);
+            } else {
+                listener.onWechatRequest(event.request);
+            }
+        }
+    }
+
+    synchronized Stats getStats() {
+        expire();
+        return new Stats(events.size(), replayed, dropped);
+    }
+
+    private void put(String key, Event event) {
+        expire();
+        // Re-inserting moves a coalesced transaction to the end so replay order stays arrival order.
+        if (events.remove(key) != null) {
+            dropped++;
+        }
+        events.put(key, event);
+        Iterator<Event> iterator = events.values().iterator();
+        while (events.size() > MAX_EVENTS && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            dropped++;
+        }
+    }
+
+    private void expire() {
+        long cutoff = SystemClock.elapsedRealtime() - TTL_MS;
+        Iterator<Event> iterator = events.values().iterator();
+        // Events are in arrival order, so the first live one ends the scan.
+        while (iterator.hasNext() && iterator.next().receivedAt <= cutoff) {
+            iterator.remove();
+            dropped++;
+        }
+    }
+
+    private String key(String kind, int type, String transaction) {
+        if (TextUtils.isEmpty(transaction)) {
+            return kind + ":" + type + ":#" + anonymousKeys++;
+        }
+        return kind + ":" + type + ":" + transaction;
+    }
+}
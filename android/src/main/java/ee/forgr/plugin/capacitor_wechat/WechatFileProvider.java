@@ -0,0 +1,9 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import androidx.core.content.FileProvider;
+
+/**
+ * Exposes staged share images to WeChat. A dedicated subclass keeps this provider from clashing with a
+ * {@code FileProvider} declared by the host app.
+ */
+public class WechatFileProvider extends FileProvider {}
@@ -0,0 +1,152 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared HTTP layer for share media. Connections are never {@code disconnect()}ed on success: bodies are drained
+ * and closed instead, which returns the socket to the platform keep-alive pool so a thumbnail and an image from the
+ * same CDN reuse one TCP/TLS session.
+ */
+final class WechatHttpClient {
+
+    static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    static final int DEFAULT_READ_TIMEOUT_MS = 15000;
+
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    /** Opens connections; tests construct a client with their own factory to reach a local HTTP stand-in. */
+    interface ConnectionFactory {
+        HttpURLConnection open(URL url) throws IOException;
+    }
+
+    private static final WechatHttpClient INSTANCE = new WechatHttpClient((url) ->
+        (HttpURLConnection) url.openConnection()
+    );
+
+    private final ConnectionFactory connectionFactory;
+    private volatile int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+
+    WechatHttpClient(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    static WechatHttpClient getInstance() {
+        return INSTANCE;
+    }
+
+    void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs > 0 ? connectTimeoutMs : DEFAULT_CONNECT_TIMEOUT_MS;
+        this.readTimeoutMs = readTimeoutMs > 0 ? readTimeoutMs : DEFAULT_READ_TIMEOUT_MS;
+    }
+
+    /**
+     * Issues a GET and returns once the response headers are in. The caller must close the response; cancelling
+     * {@code token} aborts the connection from any thread.
+     */
+    Response get(String urlString, Map<String, String> headers, WechatCancellationToken token) throws IOException {
+        token.throwIfCancelled();
+        HttpURLConnection connection = connectionFactory.open(new URL(urlString));
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeoutMs);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        WechatCancellationToken.Registration registration = token.onCancel(connection::disconnect);
+        try {
+            connection.connect();
+            int code = connection.getResponseCode();
+            token.throwIfCancelled();
+            return new Response(connection, code, registration);
+        } catch (IOException | RuntimeException ex) {
+            registration.unregister();
+            connection.disconnect();
+            if (token.isCancelled()) {
+                throw new WechatCancellationToken.CancelledException();
+            }
+            throw ex;
+        }
+    }
+
+    static final class Response implements Closeable {
+
+        final int code;
+        private final HttpURLConnection connection;
+        private final WechatCancellationToken.Registration registration;
+        private InputStream body;
+        private boolean failed;
+
+        private Response(HttpURLConnection connection, int code, WechatCancellationToken.Registration registration) {
+            this.connection = connection;
+            this.code = code;
+            this.registration = registration;
+        }
+
+        String header(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        long expiration() {
+            return connection.getExpiration();
+        }
+
+        /** Declared length of the decoded body, or -1 when unknown or compressed. */
+        long contentLength() {
+            return isGzip() ? -1 : connection.getContentLengthLong();
+        }
+
+        InputStream body() throws IOException {
+            if (body == null) {
+                InputStream raw = code >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getErrorStream()
+                    : connection.getInputStream();
+                body = raw != null && isGzip() ? new GZIPInputStream(raw) : raw;
+            }
+            return body;
+        }
+
+        /** Marks the connection as unusable, e.g. after an aborted read, so it is not returned to the pool. */
+        void abort() {
+            failed = true;
+        }
+
+        @Override
+        public void close() {
+            registration.unregister();
+            if (failed) {
+                connection.disconnect();
+                return;
+            }
+            try {
+                InputStream stream = body();
+                if (stream != null) {
+                    // Drain small remainders so the socket can be reused; give up on large ones.
+                    byte[] scratch = new byte[8192];
+                    int drained = 0;
+                    int read;
+                    while (drained < DRAIN_LIMIT && (read = stream.read(scratch)) != -1) {
+                        drained += read;
+                    }
+                    stream.close();
+                }
+            } catch (IOException ex) {
+                connection.disconnect();
+            }
+        }
+
+        private boolean isGzip() {
+            String encoding = connection.getContentEncoding();
+            return encoding != null && encoding.toLowerCase(Locale.US).contains("gzip");
+        }
+    }
+}
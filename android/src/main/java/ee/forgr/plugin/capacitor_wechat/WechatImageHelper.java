@@ -4,60 +4,126 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
+import android.graphics.ImageDecoder;
 import android.net.Uri;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.Base64;
+import android.util.Base64InputStream;
+import android.util.Log;
+import androidx.annotation.RequiresApi;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.UncheckedIOException;
 
 final class WechatImageHelper {
 
-    private static final int MAX_THUMB_BYTES = 128 * 1024;
+    static final int THUMB_MAX_SIZE = 512;
+    static final int IMAGE_MAX_SIZE = 2048;
+    // A little above the largest phone camera output; bigger sources are treated as decompression bombs.
+    static final long MAX_SOURCE_PIXELS = 250L * 1000 * 1000;
+
+    private static final String TAG = "CapacitorWechat";
+
+    private static volatile WechatThumbnailEncoder.Format thumbnailFormat = WechatThumbnailEncoder.Format.JPEG;
+
+    /** Reopens the same encoded image so it can be read once for its bounds and once for its pixels. */
+    private interface StreamSource {
+        InputStream open() throws IOException;
+    }
 
     private WechatImageHelper() {}
 
-    static Bitmap loadBitmap(Context context, String source) throws IOException {
+    /**
+     * Loads {@code source} so that its longest edge is at most {@code maxSize} pixels (0 keeps the full size).
+     * On API 28+ files and content URIs go through {@link ImageDecoder} with a target size. Otherwise the bounds
+     * are read first so the pixels are decoded with an {@code inSampleSize}, which keeps peak memory tied to the
+     * target size instead of the source size. Thumbnails of opaque sources are decoded as RGB_565.
+     */
+    static Bitmap loadBitmap(
+        Context context,
+        String source,
+        int maxSize,
+        boolean thumbnail,
+        WechatCancellationToken token
+    ) throws IOException {
         if (TextUtils.isEmpty(source)) {
             return null;
         }
 
         if (source.startsWith("data:")) {
-            return decodeBase64(source);
+            // Decode straight from the string so neither the payload substring nor the decoded bytes are held.
+            return decodeSampled(() -> openDataUrl(source), maxSize, thumbnail);
         }
 
         if (source.startsWith("http://") || source.startsWith("https://")) {
-            return downloadBitmap(source);
+            try (WechatMediaCache.Lease lease = WechatMediaCache.getInstance(context).fetch(source, token)) {
+                return decodeFile(lease.file, maxSize, thumbnail);
+            }
         }
 
         if (source.startsWith("content://")) {
-            return decodeFromContentUri(context, source);
+            ContentResolver resolver = context.getContentResolver();
+            Uri uri = Uri.parse(source);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                return decodeWithImageDecoder(ImageDecoder.createSource(resolver, uri), maxSize, thumbnail);
+            }
+            return decodeSampled(() -> resolver.openInputStream(uri), maxSize, thumbnail);
         }
 
         if (source.startsWith("file://")) {
-            return BitmapFactory.decodeFile(Uri.parse(source).getPath());
+            return decodeFile(new File(Uri.parse(source).getPath()), maxSize, thumbnail);
         }
 
         File file = new File(source);
         if (file.exists()) {
-            return BitmapFactory.decodeFile(file.getAbsolutePath());
+            return decodeFile(file, maxSize, thumbnail);
         }
 
         // Try loading from cache directory relative path
         File cacheRelative = new File(context.getCacheDir(), source);
         if (cacheRelative.exists()) {
-            return BitmapFactory.decodeFile(cacheRelative.getAbsolutePath());
+            return decodeFile(cacheRelative, maxSize, thumbnail);
         }
 
         return null;
     }
 
+    /**
+     * Returns {@code thumbData} of at most {@code maxBytes} for {@code source} when the encoder manages it, reusing
+     * the bytes encoded by an earlier share of the same source, size and budget when they are still cached.
+     */
+    static byte[] loadThumbnail(
+        Context context,
+        String source,
+        int maxSize,
+        int maxBytes,
+        WechatCancellationToken token
+    ) throws IOException {
+        if (TextUtils.isEmpty(source)) {
+            return null;
+        }
+        WechatThumbnailCache cache = WechatThumbnailCache.getInstance();
+        String key = WechatThumbnailCache.keyFor(source, maxSize, maxBytes);
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        Bitmap bitmap = loadBitmap(context, source, maxSize, true, token);
+        token.throwIfCancelled();
+        if (bitmap == null) {
+            return null;
+        }
+        byte[] data = buildThumbnail(bitmap, maxBytes);
+        WechatBitmapPool.getInstance().release(bitmap);
+        cache.put(key, data);
+        return data;
+    }
+
     static byte[] bitmapToBytes(Bitmap bitmap) {
         if (bitmap == null) {
             return null;
@@ -69,85 +135,185 @@ final class WechatImageHelper {
         return data;
     }
 
-    static byte[] buildThumbnail(Bitmap bitmap) {
+    static byte[] buildThumbnail(Bitmap bitmap, int maxBytes) {
         if (bitmap == null) {
             return null;
         }
+        long started = WechatMetrics.start();
+        WechatThumbnailEncoder.Result result = WechatThumbnailEncoder.encode(bitmap, maxBytes, thumbnailFormat);
+        WechatMetrics.getInstance().record("media.encode", WechatMetrics.OK, started);
+        Log.d(TAG, "Encoded thumbnail: " + WechatThumbnailEncoder.describe(result));
+        return result.data;
+    }
 
-        Bitmap scaled = bitmap;
-        int quality = 90;
-        byte[] data = compress(scaled, quality);
+    static void setThumbnailFormat(WechatThumbnailEncoder.Format format) {
+        thumbnailFormat = format;
+    }
 
-        while (data != null && data.length > MAX_THUMB_BYTES && quality > 10) {
-            quality -= 10;
-            data = compress(scaled, quality);
+    private static Bitmap decodeFile(File file, int maxSize, boolean thumbnail) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return decodeWithImageDecoder(ImageDecoder.createSource(file), maxSize, thumbnail);
         }
+        return decodeSampled(() -> new FileInputStream(file), maxSize, thumbnail);
+    }
 
-        if (data != null && data.length > MAX_THUMB_BYTES) {
-            float ratio = (float) Math.sqrt((double) data.length / MAX_THUMB_BYTES);
-            int width = Math.max(1, (int) (scaled.getWidth() / ratio));
-            int height = Math.max(1, (int) (scaled.getHeight() / ratio));
-            Bitmap resized = Bitmap.createScaledBitmap(scaled, width, height, true);
-            data = compress(resized, quality);
-            if (resized != scaled) {
-                resized.recycle();
-            }
+    /**
+     * Decodes and downscales in one step, straight to the size {@link #decodeSampled} reaches with sampling plus a
+     * resize, so both paths hand the encoder identical dimensions. Also covers HEIF natively.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.P)
+    private static Bitmap decodeWithImageDecoder(ImageDecoder.Source source, int maxSize, boolean thumbnail)
+        throws IOException {
+        long started = WechatMetrics.start();
+        Bitmap bitmap = null;
+        try {
+            bitmap = ImageDecoder.decodeBitmap(source, (decoder, info, ignored) -> {
+                try {
+                    checkSourceSize(info.getSize().getWidth(), info.getSize().getHeight());
+                } catch (WechatMediaTooLargeException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                // Software pixels: the result is compressed and rescaled, which hardware bitmaps cannot do cheaply.
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                // ImageDecoder cannot decode into a reused buffer, but a mutable result can feed the pool afterwards.
+                decoder.setMutableRequired(true);
+                if (thumbnail) {
+                    decoder.setMemorySizePolicy(ImageDecoder.MEMORY_POLICY_LOW_RAM);
+                }
+                int[] target = targetSize(info.getSize().getWidth(), info.getSize().getHeight(), maxSize);
+                decoder.setTargetSize(target[0], target[1]);
+            });
+            return bitmap;
+        } catch (ImageDecoder.DecodeException ex) {
+            return null;
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            recordDecode(bitmap, started);
         }
+    }
 
-        return data;
+    private static Bitmap decodeSampled(StreamSource source, int maxSize, boolean thumbnail) throws IOException {
+        long started = WechatMetrics.start();
+        Bitmap bitmap = null;
+        try {
+            bitmap = decodeSampledUntimed(source, maxSize, thumbnail);
+            return bitmap;
+        } finally {
+            recordDecode(bitmap, started);
+        }
     }
 
-    private static byte[] compress(Bitmap bitmap, int quality) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream);
-        byte[] data = stream.toByteArray();
-        closeQuietly(stream);
-        return data;
+    private static void recordDecode(Bitmap bitmap, long started) {
+        String outcome = bitmap != null ? WechatMetrics.OK : WechatMetrics.ERROR;
+        WechatMetrics.getInstance().record("media.decode", outcome, started);
     }
 
-    private static Bitmap decodeBase64(String dataUrl) {
-        int commaIndex = dataUrl.indexOf(',');
-        String base64 = commaIndex >= 0 ? dataUrl.substring(commaIndex + 1) : dataUrl;
-        byte[] decoded = Base64.decode(base64, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(decoded, 0, decoded.length);
+    private static Bitmap decodeSampledUntimed(StreamSource source, int maxSize, boolean thumbnail)
+        throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        decodeStream(source, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        checkSourceSize(bounds.outWidth, bounds.outHeight);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(bounds.outWidth, bounds.outHeight, maxSize);
+        options.inPreferredConfig = thumbnail && "image/jpeg".equals(bounds.outMimeType)
+            ? Bitmap.Config.RGB_565
+            : Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = decodeReusing(source, options, bounds.outWidth, bounds.outHeight);
+        if (bitmap == null) {
+            return null;
+        }
+        int[] target = targetSize(bounds.outWidth, bounds.outHeight, maxSize);
+        if (bitmap.getWidth() == target[0] && bitmap.getHeight() == target[1]) {
+            return bitmap;
+        }
+        WechatBitmapPool pool = WechatBitmapPool.getInstance();
+        Bitmap resized = pool.scale(bitmap, target[0], target[1]);
+        pool.release(bitmap);
+        return resized;
     }
 
-    private static Bitmap downloadBitmap(String urlString) throws IOException {
-        HttpURLConnection connection = null;
-        InputStream stream = null;
+    /** Decodes into a pooled buffer large enough for the sampled size, falling back to a new one if refused. */
+    private static Bitmap decodeReusing(StreamSource source, BitmapFactory.Options options, int width, int height)
+        throws IOException {
+        WechatBitmapPool pool = WechatBitmapPool.getInstance();
+        int sample = options.inSampleSize;
+        int sampledWidth = (width + sample - 1) / sample;
+        int sampledHeight = (height + sample - 1) / sample;
+        // The decoder reconfigures inBitmap to the decoded size, so any buffer that is big enough will do.
+        options.inMutable = true;
+        options.inBitmap = pool.take(
+            sampledWidth * sampledHeight * WechatBitmapPool.bytesPerPixel(options.inPreferredConfig)
+        );
+        Bitmap reused = options.inBitmap;
+        Bitmap bitmap;
         try {
-            URL url = new URL(urlString);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(15000);
-            connection.connect();
-            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                throw new IOException("HTTP " + connection.getResponseCode() + " when fetching " + urlString);
-            }
-            stream = connection.getInputStream();
-            return BitmapFactory.decodeStream(stream);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-            closeQuietly(stream);
+            bitmap = decodeStream(source, options);
+        } catch (IllegalArgumentException ex) {
+            // Thrown when a codec cannot decode into the given buffer.
+            options.inBitmap = null;
+            bitmap = decodeStream(source, options);
+        }
+        if (reused != null && bitmap != reused) {
+            pool.release(reused);
         }
+        return bitmap;
     }
 
-    private static Bitmap decodeFromContentUri(Context context, String uriString) throws IOException {
-        ContentResolver resolver = context.getContentResolver();
+    private static Bitmap decodeStream(StreamSource source, BitmapFactory.Options options) throws IOException {
         InputStream stream = null;
         try {
-            stream = resolver.openInputStream(Uri.parse(uriString));
+            stream = source.open();
             if (stream == null) {
                 return null;
             }
-            return BitmapFactory.decodeStream(stream);
+            return BitmapFactory.decodeStream(stream, null, options);
         } finally {
             closeQuietly(stream);
         }
     }
 
+    /** Rejects sources whose header declares more pixels than any real photo, before their pixels are read. */
+    private static void checkSourceSize(int width, int height) throws WechatMediaTooLargeException {
+        if ((long) width * height > MAX_SOURCE_PIXELS) {
+            throw new WechatMediaTooLargeException("Image of " + width + "x" + height + " pixels is too large.");
+        }
+    }
+
+    /**
+     * Final size of a {@code width}x{@code height} source whose longest edge is capped at {@code maxSize}, computed
+     * from the original dimensions so every decode path agrees on it.
+     */
+    static int[] targetSize(int width, int height, int maxSize) {
+        if (maxSize <= 0 || (width <= maxSize && height <= maxSize)) {
+            return new int[] { width, height };
+        }
+        float ratio = Math.min((float) maxSize / width, (float) maxSize / height);
+        return new int[] { Math.max(1, Math.round(width * ratio)), Math.max(1, Math.round(height * ratio)) };
+    }
+
+    /**
+     * Largest power of two that keeps the longest edge at or above {@code maxSize}, so the final resize only ever
+     * shrinks and never upsamples.
+     */
+    static int calculateInSampleSize(int width, int height, int maxSize) {
+        int sampleSize = 1;
+        if (maxSize <= 0) {
+            return sampleSize;
+        }
+        int longest = Math.max(width, height);
+        while (longest / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /** Returns {@code bitmap} when it already fits, otherwise a scaled copy; the original then goes to the pool. */
     static Bitmap scaleDown(Bitmap bitmap, int maxSize) {
         if (bitmap == null) {
             return null;
@@ -158,10 +324,11 @@ final class WechatImageHelper {
             return bitmap;
         }
         float ratio = Math.min((float) maxSize / width, (float) maxSize / height);
-        Matrix matrix = new Matrix();
-        matrix.postScale(ratio, ratio);
-        Bitmap scaled = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
-        bitmap.recycle();
+        WechatBitmapPool pool = WechatBitmapPool.getInstance();
+        int scaledWidth = Math.max(1, Math.round(width * ratio));
+        int scaledHeight = Math.max(1, Math.round(height * ratio));
+        Bitmap scaled = pool.scale(bitmap, scaledWidth, scaledHeight);
+        pool.release(bitmap);
         return scaled;
     }
 
@@ -172,4 +339,47 @@ final class WechatImageHelper {
             } catch (IOException ignored) {}
         }
     }
+
+    /** Streams the decoded payload of a base64 {@code data:} URL. */
+    static InputStream openDataUrl(String source) {
+        return new Base64InputStream(new AsciiInputStream(source, source.indexOf(',') + 1), Base64.DEFAULT);
+    }
+
+    /** Reads the characters of a base64 payload as bytes without copying the string. */
+    private static final class AsciiInputStream extends InputStream {
+
+        private final String value;
+        private int position;
+
+        AsciiInputStream(String value, int start) {
+            this.value = value;
+            this.position = start;
+        }
+
+        @Override
+        public int read() {
+            return position < value.length() ? value.charAt(position++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int remaining = value.length() - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = Math.min(length, remaining);
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = (byte) value.charAt(position++);
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return value.length() - position;
+        }
+    }
 }
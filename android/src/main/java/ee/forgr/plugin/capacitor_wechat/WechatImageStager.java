@@ -0,0 +1,250 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.system.ErrnoException;
+import android.system.Os;
+import androidx.core.content.FileProvider;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stages image shares as files under {@code cache/wechat-share} and hands WeChat a {@link WechatFileProvider} URI,
+ * so the image is written once instead of being PNG-encoded into the request. JPEG, PNG and GIF sources are
+ * passed through byte for byte; anything else is re-encoded once as JPEG.
+ */
+final class WechatImageStager {
+
+    /** First WeChat build (7.0.13) that reads share images through a FileProvider URI. */
+    static final int FILE_PROVIDER_MIN_SUPPORT_API = 0x27000D00;
+
+    private static final String WECHAT_PACKAGE = "com.tencent.mm";
+    private static final String DIRECTORY_NAME = "wechat-share";
+    private static final String AUTHORITY_SUFFIX = ".wechat.fileprovider";
+    private static final long MAX_FILE_BYTES = 25L * 1024 * 1024;
+    // WeChat reads the file after the app switch, so staged files outlive the share call for a while.
+    private static final long STAGED_FILE_TTL_MS = 60 * 60 * 1000;
+    private static final int REENCODE_QUALITY = 90;
+    // <staging millis>-<uuid>.<ext>, as written by stage().
+    private static final Pattern STAGED_NAME = Pattern.compile(
+        "(\\d+)-\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}\\.\\w+"
+    );
+
+    private WechatImageStager() {}
+
+    /** Returns a {@code content://} URI string for {@code source} that WeChat is allowed to read. */
+    static String stage(Context context, String source, WechatCancellationToken token) throws IOException {
+        String authority = context.getPackageName() + AUTHORITY_SUFFIX;
+        if (source.startsWith("content://") && authority.equals(Uri.parse(source).getAuthority())) {
+            return grant(context, Uri.parse(source));
+        }
+
+        File directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create share staging directory.");
+        }
+        pruneStaleFiles(context, authority, directory);
+
+        // The staging time goes into the name: a hard-linked file keeps the mtime of its source.
+        String name = System.currentTimeMillis() + "-" + UUID.randomUUID();
+        boolean remote = source.startsWith("http://") || source.startsWith("https://");
+        // Keeps a cached download on disk until it has been linked, copied or re-encoded below.
+        WechatMediaCache.Lease lease = remote ? WechatMediaCache.getInstance(context).fetch(source, token) : null;
+        File raw = lease != null ? lease.file : localFile(context, source);
+        File temp = null;
+        try {
+            if (raw == null) {
+                temp = new File(directory, name + ".tmp");
+                copy(openStream(context, source), temp);
+                raw = temp;
+            }
+            token.throwIfCancelled();
+
+            String extension = passThroughExtension(raw);
+            File staged;
+            if (extension != null) {
+                staged = new File(directory, name + extension);
+                if (raw == temp) {
+                    if (!temp.renameTo(staged)) {
+                        throw new IOException("Unable to stage share image.");
+                    }
+                } else {
+                    linkOrCopy(raw, staged);
+                }
+            } else {
+                staged = new File(directory, name + ".jpg");
+                reencode(context, raw, staged, token);
+            }
+            return grant(context, FileProvider.getUriForFile(context, authority, staged));
+        } finally {
+            if (temp != null && temp.exists()) {
+                temp.delete();
+            }
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    private static File localFile(Context context, String source) throws IOException {
+        if (source.startsWith("file://")) {
+            return existing(new File(Uri.parse(source).getPath()));
+        }
+        if (source.startsWith("content://") || source.startsWith("data:")) {
+            return null;
+        }
+        File file = new File(source);
+        if (file.exists()) {
+            return file;
+        }
+        return existing(new File(context.getCacheDir(), source));
+    }
+
+    private static File existing(File file) throws IOException {
+        if (!file.exists()) {
+            throw new IOException("Image file not found: " + file.getPath());
+        }
+        return file;
+    }
+
+    private static InputStream openStream(Context context, String source) throws IOException {
+        InputStream stream = source.startsWith("data:")
+            ? WechatImageHelper.openDataUrl(source)
+            : context.getContentResolver().openInputStream(Uri.parse(source));
+        if (stream == null) {
+            throw new IOException("Unable to open image: " + source);
+        }
+        return stream;
+    }
+
+    /** File extension for formats WeChat accepts as-is, or {@code null} when the file must be re-encoded. */
+    private static String passThroughExtension(File file) throws IOException {
+        if (file.length() > MAX_FILE_BYTES) {
+            return null;
+        }
+        byte[] header = new byte[8];
+        int read;
+        InputStream stream = new FileInputStream(file);
+        try {
+            read = stream.read(header);
+        } finally {
+            closeQuietly(stream);
+        }
+        if (read >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF) {
+            return ".jpg";
+        }
+        if (read >= 8 && (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G') {
+            return ".png";
+        }
+        if (read >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8') {
+            return ".gif";
+        }
+        return null;
+    }
+
+    private static void reencode(Context context, File raw, File staged, WechatCancellationToken token)
+        throws IOException {
+        Bitmap bitmap = WechatImageHelper.loadBitmap(
+            context,
+            raw.getAbsolutePath(),
+            WechatImageHelper.IMAGE_MAX_SIZE,
+            false,
+            token
+        );
+        if (bitmap == null) {
+            throw new IOException("Unable to decode image.");
+        }
+        OutputStream output = new FileOutputStream(staged);
+        boolean encoded;
+        try {
+            encoded = bitmap.compress(Bitmap.CompressFormat.JPEG, REENCODE_QUALITY, output);
+        } finally {
+            closeQuietly(output);
+            WechatBitmapPool.getInstance().release(bitmap);
+        }
+        if (!encoded) {
+            staged.delete();
+            throw new IOException("Unable to encode share image.");
+        }
+    }
+
+    private static void linkOrCopy(File source, File target) throws IOException {
+        try {
+            // A hard link costs nothing and survives the media cache evicting the original.
+            Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+        } catch (ErrnoException ex) {
+            copy(new FileInputStream(source), target);
+        }
+    }
+
+    private static String grant(Context context, Uri uri) {
+        context.grantUriPermission(WECHAT_PACKAGE, uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        return uri.toString();
+    }
+
+    private static void pruneStaleFiles(Context context, String authority, File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - STAGED_FILE_TTL_MS;
+        for (File file : files) {
+            if (stagedAt(file) >= cutoff) {
+                continue;
+            }
+            try {
+                context.revokeUriPermission(
+                    FileProvider.getUriForFile(context, authority, file),
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION
+                );
+            } catch (IllegalArgumentException ignored) {
+                // Not served by the provider, so nothing was granted.
+            }
+            file.delete();
+        }
+    }
+
+    /** When {@code file} was staged, from its name; files staged by older versions fall back to their mtime. */
+    private static long stagedAt(File file) {
+        Matcher matcher = STAGED_NAME.matcher(file.getName());
+        if (matcher.matches()) {
+            try {
+                return Long.parseLong(matcher.group(1));
+            } catch (NumberFormatException ignored) {}
+        }
+        return file.lastModified();
+    }
+
+    private static void copy(InputStream input, File target) throws IOException {
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(target);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            closeQuietly(input);
+            closeQuietly(output);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
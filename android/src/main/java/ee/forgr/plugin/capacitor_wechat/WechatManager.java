@@ -1,26 +1,56 @@
 package ee.forgr.plugin.capacitor_wechat;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
 import android.text.TextUtils;
 import com.tencent.mm.opensdk.modelbase.BaseReq;
 import com.tencent.mm.opensdk.modelbase.BaseResp;
 import com.tencent.mm.opensdk.openapi.IWXAPI;
 import com.tencent.mm.opensdk.openapi.WXAPIFactory;
 import java.lang.ref.WeakReference;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 final class WechatManager {
 
     private static final WechatManager INSTANCE = new WechatManager();
 
-    private final Queue<BaseResp> pendingResponses = new ConcurrentLinkedQueue<>();
-    private final Queue<BaseReq> pendingRequests = new ConcurrentLinkedQueue<>();
+    private static final String WECHAT_PACKAGE = "com.tencent.mm";
 
-    private WeakReference<WechatResponseListener> listenerRef = new WeakReference<>(null);
+    /** Whether WeChat is installed and the API level it reports, as of the last package change. */
+    static final class InstallState {
+
+        static final InstallState UNKNOWN = new InstallState(false, 0);
+
+        final boolean installed;
+        final int supportApi;
+
+        InstallState(boolean installed, int supportApi) {
+            this.installed = installed;
+            this.supportApi = supportApi;
+        }
+    }
+
+    private final WechatEventBuffer buffer = new WechatEventBuffer();
+
+    private volatile WeakReference<WechatResponseListener> listenerRef = new WeakReference<>(null);
     private IWXAPI api;
     private String currentAppId;
     private Context appContext;
+    // Both values are PackageManager queries, so they are cached until WeChat is installed, updated or removed.
+    private volatile InstallState installState;
+    private boolean packageReceiverRegistered;
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null && WECHAT_PACKAGE.equals(data.getSchemeSpecificPart())) {
+                installState = null;
+            }
+        }
+    };
 
     static WechatManager getInstance() {
         return INSTANCE;
@@ -39,6 +69,39 @@ final class WechatManager {
         currentAppId = appId;
         api = WXAPIFactory.createWXAPI(appContext, appId, true);
         api.registerApp(appId);
+        installState = null;
+        registerPackageReceiver();
+    }
+
+    /** Returns the cached install state, querying WeChat only after a package change or a new configuration. */
+    InstallState getInstallState() {
+        InstallState state = installState;
+        if (state != null) {
+            return state;
+        }
+        synchronized (this) {
+            if (installState == null) {
+                if (api == null) {
+                    return InstallState.UNKNOWN;
+                }
+                boolean installed = api.isWXAppInstalled();
+                installState = new InstallState(installed, installed ? api.getWXAppSupportAPI() : 0);
+            }
+            return installState;
+        }
+    }
+
+    private void registerPackageReceiver() {
+        if (packageReceiverRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        appContext.registerReceiver(packageReceiver, filter);
+        packageReceiverRegistered = true;
     }
 
     synchronized IWXAPI getApi() {
@@ -57,7 +120,7 @@ final class WechatManager {
 
     void registerListener(WechatResponseListener listener) {
         listenerRef = new WeakReference<>(listener);
-        flushQueues();
+        buffer.drainTo(listener);
     }
 
     void unregisterListener(WechatResponseListener listener) {
@@ -71,32 +134,31 @@ final class WechatManager {
         WechatResponseListener listener = listenerRef.get();
         if (listener != null) {
             listener.onWechatResponse(resp);
-        } else {
-            pendingResponses.add(resp);
+            return;
         }
+        buffer.add(resp);
+        flushIfListening();
     }
 
     void handleRequest(BaseReq req) {
         WechatResponseListener listener = listenerRef.get();
         if (listener != null) {
             listener.onWechatRequest(req);
-        } else {
-            pendingRequests.add(req);
+            return;
         }
+        buffer.add(req);
+        flushIfListening();
+    }
+
+    WechatEventBuffer.Stats getBufferStats() {
+        return buffer.getStats();
     }
 
-    private void flushQueues() {
+    // Covers a listener that registered between the null check and the add, which would otherwise miss the event.
+    private void flushIfListening() {
         WechatResponseListener listener = listenerRef.get();
-        if (listener == null) {
-            return;
-        }
-        BaseResp resp;
-        while ((resp = pendingResponses.poll()) != null) {
-            listener.onWechatResponse(resp);
-        }
-        BaseReq req;
-        while ((req = pendingRequests.poll()) != null) {
-            listener.onWechatRequest(req);
+        if (listener != null) {
+            buffer.drainTo(listener);
         }
     }
 }
@@ -0,0 +1,513 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Size-bounded LRU cache of remote share media under {@code getCacheDir()}. Entries are keyed by URL, served
+ * straight from disk while fresh and revalidated with ETag/Last-Modified once they go stale. A body handed out by
+ * {@link #fetch} is pinned until its {@link Lease} is closed: eviction skips it and {@link #clear()} defers its
+ * deletion, so a caller never finds the file gone before it has decoded it.
+ */
+final class WechatMediaCache {
+
+    private static final String TAG = "CapacitorWechat";
+    private static final String DIRECTORY_NAME = "wechat-media";
+    private static final String BODY_SUFFIX = ".bin";
+    private static final String META_SUFFIX = ".meta";
+    // In-flight downloads; files left over from an earlier process are removed on load.
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String META_URL = "url";
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "lastModified";
+    private static final String META_EXPIRES_AT = "expiresAt";
+
+    static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    static final long DEFAULT_MAX_DOWNLOAD_BYTES = 20L * 1024 * 1024;
+    // Used when the server sends no Cache-Control/Expires, so repeat shares skip the network for a while.
+    private static final long DEFAULT_FRESHNESS_MS = 10 * 60 * 1000;
+
+    private static WechatMediaCache instance;
+
+    private final File directory;
+    private final WechatHttpClient client;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile long maxDownloadBytes = DEFAULT_MAX_DOWNLOAD_BYTES;
+    private long totalBytes;
+    private boolean loaded;
+
+    private long hitCount;
+    private long missCount;
+    private long revalidationCount;
+    private long evictionCount;
+
+    /** Tests pass a client whose connections go to a local HTTP stand-in. */
+    WechatMediaCache(File directory, WechatHttpClient client) {
+        this.directory = directory;
+        this.client = client;
+    }
+
+    static synchronized WechatMediaCache getInstance(Context context) {
+        if (instance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+            instance = new WechatMediaCache(directory, WechatHttpClient.getInstance());
+        }
+        return instance;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        if (loaded) {
+            trimToSize();
+        }
+    }
+
+    /** Caps the size of a single download; {@code 0} or less restores the default. */
+    void setMaxDownloadBytes(long maxDownloadBytes) {
+        this.maxDownloadBytes = maxDownloadBytes > 0 ? maxDownloadBytes : DEFAULT_MAX_DOWNLOAD_BYTES;
+    }
+
+    /**
+     * Returns a lease on a local file holding the body of {@code urlString}, downloading or revalidating it when
+     * needed. Bodies over the download cap fail with {@link WechatMediaTooLargeException}: up front when the server
+     * declares the length, otherwise as soon as the transfer passes the cap.
+     */
+    Lease fetch(String urlString, WechatCancellationToken token) throws IOException {
+        String key = keyFor(urlString);
+        Entry cached;
+        synchronized (this) {
+            ensureLoaded();
+            cached = entries.get(key);
+            if (cached != null && !cached.body.exists()) {
+                removeEntry(cached);
+                cached = null;
+            }
+            if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+                hitCount++;
+                cached.body.setLastModified(System.currentTimeMillis());
+                return new Lease(cached);
+            }
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        if (cached != null && !TextUtils.isEmpty(cached.etag)) {
+            headers.put("If-None-Match", cached.etag);
+        }
+        if (cached != null && !TextUtils.isEmpty(cached.lastModified)) {
+            headers.put("If-Modified-Since", cached.lastModified);
+        }
+        long started = WechatMetrics.start();
+        String outcome = WechatMetrics.ERROR;
+        try (WechatHttpClient.Response response = client.get(urlString, headers, token)) {
+            if (response.code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                outcome = "not_modified";
+                synchronized (this) {
+                    if (entries.get(key) == cached) {
+                        revalidationCount++;
+                        hitCount++;
+                        cached.expiresAt = expiresAt(response);
+                        cached.body.setLastModified(System.currentTimeMillis());
+                        writeMeta(cached);
+                        return new Lease(cached);
+                    }
+                }
+                // Cleared or replaced while the request was in flight, so start over from the current state.
+                return fetch(urlString, token);
+            }
+            if (response.code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + response.code + " when fetching " + urlString);
+            }
+            long limit = maxDownloadBytes;
+            if (response.contentLength() > limit) {
+                response.abort();
+                throw tooLarge(urlString, limit);
+            }
+
+            File temp = File.createTempFile(key, TEMP_SUFFIX, ensureDirectory());
+            try {
+                try {
+                    // Counting the decoded bytes also stops gzip bodies that only grow once inflated.
+                    if (!copy(response.body(), temp, limit)) {
+                        response.abort();
+                        throw tooLarge(urlString, limit);
+                    }
+                } catch (WechatMediaTooLargeException ex) {
+                    throw ex;
+                } catch (IOException ex) {
+                    response.abort();
+                    if (token.isCancelled()) {
+                        throw new WechatCancellationToken.CancelledException();
+                    }
+                    throw ex;
+                }
+                Entry entry = new Entry(key, urlString, new File(directory, key + BODY_SUFFIX));
+                entry.etag = response.header("ETag");
+                entry.lastModified = response.header("Last-Modified");
+                entry.expiresAt = expiresAt(response);
+                Lease lease;
+                synchronized (this) {
+                    missCount++;
+                    Entry previous = entries.remove(key);
+                    if (previous != null) {
+                        // The rename below takes over the body path; readers of the old file keep their handle.
+                        totalBytes -= previous.size;
+                        previous.removed = true;
+                    }
+                    if (!temp.renameTo(entry.body)) {
+                        throw new IOException("Unable to store cached media for " + urlString);
+                    }
+                    entry.size = entry.body.length();
+                    writeMeta(entry);
+                    entries.put(key, entry);
+                    totalBytes += entry.size;
+                    lease = new Lease(entry);
+                    trimToSize();
+                }
+                outcome = WechatMetrics.OK;
+                return lease;
+            } finally {
+                if (temp.exists()) {
+                    temp.delete();
+                }
+            }
+        } catch (WechatMediaTooLargeException ex) {
+            outcome = "too_large";
+            throw ex;
+        } finally {
+            WechatMetrics.getInstance().record(
+                "media.download",
+                token.isCancelled() ? WechatMetrics.CANCELLED : outcome,
+                started
+            );
+        }
+    }
+
+    synchronized void clear() {
+        ensureLoaded();
+        Set<String> pinned = new HashSet<>();
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (entry.pins > 0) {
+                pinned.add(entry.key);
+            }
+            removeEntry(entry);
+        }
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                // A download in progress still owns its temp file and adds its entry once it is done.
+                String name = file.getName();
+                if (!name.endsWith(TEMP_SUFFIX) && !pinned.contains(keyOf(name))) {
+                    file.delete();
+                }
+            }
+        }
+        totalBytes = 0;
+    }
+
+    synchronized Stats getStats() {
+        ensureLoaded();
+        return new Stats(hitCount, missCount, revalidationCount, evictionCount, entries.size(), totalBytes, maxBytes);
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Entry> found = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(META_SUFFIX)) {
+                if (!name.endsWith(BODY_SUFFIX)) {
+                    file.delete();
+                }
+                continue;
+            }
+            String key = name.substring(0, name.length() - META_SUFFIX.length());
+            Entry entry = readMeta(key, file);
+            if (entry == null || !entry.body.exists()) {
+                file.delete();
+                continue;
+            }
+            entry.size = entry.body.length();
+            found.add(entry);
+        }
+        // Least recently used first, so the access-ordered map starts out in LRU order.
+        Collections.sort(found, (a, b) -> Long.compare(a.body.lastModified(), b.body.lastModified()));
+        for (Entry entry : found) {
+            entries.put(entry.key, entry);
+            totalBytes += entry.size;
+        }
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            if (eldest.pins > 0) {
+                // Evicted once released; see release().
+                continue;
+            }
+            iterator.remove();
+            deleteFiles(eldest);
+            totalBytes -= eldest.size;
+            evictionCount++;
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        if (entries.remove(entry.key) != null) {
+            totalBytes -= entry.size;
+        }
+        entry.removed = true;
+        if (entry.pins == 0) {
+            deleteFiles(entry);
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        if (--entry.pins > 0) {
+            return;
+        }
+        if (!entry.removed) {
+            trimToSize();
+        } else if (!entries.containsKey(entry.key)) {
+            // Only delete the files when no newer download has taken over the same paths.
+            deleteFiles(entry);
+        }
+    }
+
+    private void deleteFiles(Entry entry) {
+        entry.body.delete();
+        new File(directory, entry.key + META_SUFFIX).delete();
+    }
+
+    private File ensureDirectory() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create media cache directory.");
+        }
+        return directory;
+    }
+
+    private Entry readMeta(String key, File metaFile) {
+        Properties properties = new Properties();
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(metaFile);
+            properties.load(stream);
+        } catch (IOException ex) {
+            return null;
+        } finally {
+            closeQuietly(stream);
+        }
+        String url = properties.getProperty(META_URL);
+        if (TextUtils.isEmpty(url)) {
+            return null;
+        }
+        Entry entry = new Entry(key, url, new File(directory, key + BODY_SUFFIX));
+        entry.etag = properties.getProperty(META_ETAG);
+        entry.lastModified = properties.getProperty(META_LAST_MODIFIED);
+        try {
+            entry.expiresAt = Long.parseLong(properties.getProperty(META_EXPIRES_AT, "0"));
+        } catch (NumberFormatException ex) {
+            entry.expiresAt = 0;
+        }
+        return entry;
+    }
+
+    private void writeMeta(Entry entry) {
+        Properties properties = new Properties();
+        properties.setProperty(META_URL, entry.url);
+        if (entry.etag != null) {
+            properties.setProperty(META_ETAG, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            properties.setProperty(META_LAST_MODIFIED, entry.lastModified);
+        }
+        properties.setProperty(META_EXPIRES_AT, String.valueOf(entry.expiresAt));
+        OutputStream stream = null;
+        try {
+            stream = new FileOutputStream(new File(directory, entry.key + META_SUFFIX));
+            properties.store(stream, null);
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write media cache metadata", ex);
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    private static long expiresAt(WechatHttpClient.Response response) {
+        long now = System.currentTimeMillis();
+        String cacheControl = response.header("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+                String trimmed = directive.trim();
+                if (trimmed.equals("no-cache") || trimmed.equals("no-store")) {
+                    return now;
+                }
+                if (trimmed.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(trimmed.substring("max-age=".length())) * 1000L;
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+        }
+        long expiration = response.expiration();
+        if (expiration > 0) {
+            return expiration;
+        }
+        return now + DEFAULT_FRESHNESS_MS;
+    }
+
+    /** Copies at most {@code limit} bytes and returns {@code false}, without reading further, once input has more. */
+    private static boolean copy(InputStream input, File target, long limit) throws IOException {
+        OutputStream output = new FileOutputStream(target);
+        try {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                total += read;
+                if (total > limit) {
+                    return false;
+                }
+                output.write(buffer, 0, read);
+            }
+            return true;
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    private static WechatMediaTooLargeException tooLarge(String urlString, long limit) {
+        return new WechatMediaTooLargeException("Media exceeds the " + limit + " byte download limit: " + urlString);
+    }
+
+    private static String keyOf(String fileName) {
+        int dot = fileName.indexOf('.');
+        return dot < 0 ? fileName : fileName.substring(0, dot);
+    }
+
+    private static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(String.format(Locale.US, "%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /** A fetched body that stays on disk until closed. Closing more than once has no effect. */
+    final class Lease implements Closeable {
+
+        final File file;
+        private final Entry entry;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        // Called with the cache lock held.
+        private Lease(Entry entry) {
+            this.entry = entry;
+            this.file = entry.body;
+            entry.pins++;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        final String key;
+        final String url;
+        final File body;
+        String etag;
+        String lastModified;
+        long expiresAt;
+        long size;
+        // Open leases, and whether the entry left the cache while they were open. Guarded by the cache lock.
+        int pins;
+        boolean removed;
+
+        Entry(String key, String url, File body) {
+            this.key = key;
+            this.url = url;
+            this.body = body;
+        }
+    }
+
+    static final class Stats {
+
+        final long hits;
+        final long misses;
+        final long revalidations;
+        final long evictions;
+        final int entryCount;
+        final long sizeBytes;
+        final long maxBytes;
+
+        Stats(
+            long hits,
+            long misses,
+            long revalidations,
+            long evictions,
+            int entryCount,
+            long sizeBytes,
+            long maxBytes
+        ) {
+            this.hits = hits;
+            this.misses = misses;
+            this.revalidations = revalidations;
+            this.evictions = evictions;
+            this.entryCount = entryCount;
+            this.sizeBytes = sizeBytes;
+            this.maxBytes = maxBytes;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fetches every media source of a share at the same time. Sources are deduplicated by source and target size,
+ * each one gets its own deadline, and results are handed to their sinks on the calling thread once all are in.
+ * Remote sources are downloaded on the scheduler's I/O lane and decoded on its CPU lane; the calling thread only
+ * waits, so it should be a coordinator lane task rather than an I/O or CPU one.
+ */
+final class WechatMediaResolver {
+
+    static final long DEFAULT_TIMEOUT_MS = 20000;
+
+    interface Sink<T> {
+        void accept(T value) throws IOException;
+    }
+
+    /** Turns a decoded value into what the share needs, on the lane that decoded it. */
+    interface Encoder<T, R> {
+        R encode(T value) throws IOException;
+    }
+
+    /** Produces a result from a local source: a file path, {@code content://} or {@code data:} URL. */
+    private interface Loader<T> {
+        T load(String localSource) throws IOException;
+    }
+
+    private final WechatScheduler scheduler;
+    private volatile long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+    WechatMediaResolver(WechatScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    void setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs > 0 ? timeoutMs : DEFAULT_TIMEOUT_MS;
+    }
+
+    Batch newBatch(Context context, WechatCancellationToken token, WechatScheduler.Priority priority) {
+        return new Batch(context, token, priority);
+    }
+
+    final class Batch {
+
+        private final Context context;
+        private final WechatCancellationToken token;
+        private final WechatScheduler.Priority priority;
+        private final Map<String, Pending<?>> pending = new LinkedHashMap<>();
+
+        private Batch(Context context, WechatCancellationToken token, WechatScheduler.Priority priority) {
+            this.context = context;
+            this.token = token;
+            this.priority = priority;
+        }
+
+        /** Queues {@code thumbData} of at most {@code maxBytes} for {@code source}; empty sources are ignored. */
+        void thumbnail(String source, int maxSize, int maxBytes, Sink<byte[]> sink) {
+            if (TextUtils.isEmpty(source)) {
+                return;
+            }
+            add(
+                "thumb:" + maxSize + ":" + maxBytes + ":" + source,
+                source,
+                WechatScheduler.Lane.CPU,
+                (local) -> WechatImageHelper.loadThumbnail(context, local, maxSize, maxBytes, token),
+                sink
+            );
+        }
+
+        /**
+         * Queues a full-colour bitmap for {@code source}, passed through {@code encoder} right after decoding; empty
+         * sources are ignored. Sources are deduplicated by size only, so a batch uses one encoder per source.
+         */
+        <R> void bitmap(String source, int maxSize, Encoder<Bitmap, R> encoder, Sink<R> sink) {
+            if (TextUtils.isEmpty(source)) {
+                return;
+            }
+            add(
+                "bitmap:" + maxSize + ":" + source,
+                source,
+                WechatScheduler.Lane.CPU,
+                (local) -> encoder.encode(WechatImageHelper.loadBitmap(context, local, maxSize, false, token)),
+                sink
+            );
+        }
+
+        /** Queues a FileProvider URI WeChat can read {@code source} from; empty sources are ignored. */
+        void stagedImage(String source, Sink<String> sink) {
+            if (TextUtils.isEmpty(source)) {
+                return;
+            }
+            add(
+                "staged:" + source,
+                source,
+                WechatScheduler.Lane.IO,
+                (local) -> WechatImageStager.stage(context, local, token),
+                sink
+            );
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void add(String key, String source, WechatScheduler.Lane lane, Loader<T> loader, Sink<T> sink) {
+            Pending<T> entry = (Pending<T>) pending.get(key);
+            if (entry == null) {
+                entry = new Pending<>(source, SystemClock.elapsedRealtime() + timeoutMs);
+                entry.start(context, token, priority, lane, loader);
+                pending.put(key, entry);
+            }
+            entry.sinks.add(sink);
+        }
+
+        /** Waits for every queued source and delivers the results in the order they were queued. */
+        void await() throws IOException {
+            try {
+                for (Pending<?> entry : pending.values()) {
+                    entry.deliver();
+                }
+            } finally {
+                for (Pending<?> entry : pending.values()) {
+                    entry.cancel();
+                }
+            }
+        }
+    }
+
+    private final class Pending<T> {
+
+        final String source;
+        final long deadline;
+        final List<Sink<T>> sinks = new ArrayList<>(1);
+        private WechatScheduler.Task<File> download;
+        private volatile WechatScheduler.Task<T> load;
+        private volatile WechatMediaCache.Lease lease;
+        private volatile boolean cancelled;
+
+        Pending(String source, long deadline) {
+            this.source = source;
+            this.deadline = deadline;
+        }
+
+        void start(
+            Context context,
+            WechatCancellationToken token,
+            WechatScheduler.Priority priority,
+            WechatScheduler.Lane lane,
+            Loader<T> loader
+        ) {
+            if (!source.startsWith("http://") && !source.startsWith("https://")) {
+                load = scheduler.submit(lane, priority, token, () -> loader.load(source));
+                return;
+            }
+            // Chain the decode from the download so it starts as soon as the bytes are on disk. The lease keeps the
+            // file from being evicted until the decode is done; cancel() closes it if the decode never runs.
+            download = scheduler.submit(WechatScheduler.Lane.IO, priority, token, () -> {
+                WechatMediaCache.Lease fetched = WechatMediaCache.getInstance(context).fetch(source, token);
+                lease = fetched;
+                String local = fetched.file.getAbsolutePath();
+                load = scheduler.submit(lane, priority, token, () -> {
+                    try {
+                        return loader.load(local);
+                    } finally {
+                        fetched.close();
+                    }
+                });
+                if (cancelled) {
+                    load.cancel(true);
+                    fetched.close();
+                }
+                return fetched.file;
+            });
+        }
+
+        void deliver() throws IOException {
+            if (download != null) {
+                get(download);
+            }
+            T value = get(load);
+            for (Sink<T> sink : sinks) {
+                sink.accept(value);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (download != null) {
+                download.cancel(true);
+            }
+            WechatScheduler.Task<T> task = load;
+            if (task != null) {
+                task.cancel(true);
+            }
+            WechatMediaCache.Lease current = lease;
+            if (current != null) {
+                current.close();
+            }
+        }
+
+        private <V> V get(Future<V> future) throws IOException {
+            try {
+                return future.get(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                throw new IOException("Timed out loading media: " + describe(source));
+            } catch (CancellationException ex) {
+                throw new WechatCancellationToken.CancelledException();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading media: " + describe(source));
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Failed to load media: " + describe(source), cause);
+            }
+        }
+    }
+
+    private static String describe(String source) {
+        return source.startsWith("data:") ? "data URL" : source;
+    }
+}
@@ -0,0 +1,11 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import java.io.IOException;
+
+/** Raised when a share source exceeds the download size cap or the decoder's pixel limit. */
+final class WechatMediaTooLargeException extends IOException {
+
+    WechatMediaTooLargeException(String message) {
+        super(message);
+    }
+}
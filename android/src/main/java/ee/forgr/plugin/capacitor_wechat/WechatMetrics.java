@@ -0,0 +1,143 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms per phase and outcome, for example {@code media.download}/{@code ok} or
+ * {@code wechat.share}/{@code cancel}. Timers use {@link System#nanoTime()}; recording is a map lookup and a few
+ * atomic increments, so phases can be timed on hot paths.
+ */
+final class WechatMetrics {
+
+    /** Upper bounds of the histogram buckets in milliseconds; a last, unbounded bucket follows. */
+    static final long[] BUCKETS_MS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    static final String OK = "ok";
+    static final String ERROR = "error";
+    static final String CANCELLED = "cancelled";
+
+    private static final WechatMetrics INSTANCE = new WechatMetrics();
+
+    interface Listener {
+        void onSample(String name, String outcome, long durationMs);
+    }
+
+    /** Copy of one histogram taken by {@link #snapshot}. */
+    static final class Histogram {
+
+        final String name;
+        final String outcome;
+        final long count;
+        final long totalMs;
+        final long maxMs;
+        final long[] buckets;
+
+        Histogram(String name, String outcome, long count, long totalMs, long maxMs, long[] buckets) {
+            this.name = name;
+            this.outcome = outcome;
+            this.count = count;
+            this.totalMs = totalMs;
+            this.maxMs = maxMs;
+            this.buckets = buckets;
+        }
+
+        /** Upper bound of the bucket holding the given quantile, or {@code maxMs} for the unbounded bucket. */
+        long quantileMs(double quantile) {
+            long rank = (long) Math.ceil(count * quantile);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i < BUCKETS_MS.length ? Math.min(BUCKETS_MS[i], maxMs) : maxMs;
+                }
+            }
+            return maxMs;
+        }
+    }
+
+    private static final class Series {
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMs = new AtomicLong();
+        final AtomicLong maxMs = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_MS.length + 1);
+
+        void add(long durationMs) {
+            count.incrementAndGet();
+            totalMs.addAndGet(durationMs);
+            long max;
+            while (durationMs > (max = maxMs.get()) && !maxMs.compareAndSet(max, durationMs)) {}
+            int bucket = 0;
+            while (bucket < BUCKETS_MS.length && durationMs > BUCKETS_MS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+        }
+    }
+
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+    private volatile Listener listener;
+
+    static WechatMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /** Returns a start mark for {@link #record}. */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Records the time since {@code startNanos}, a value returned by {@link #start()}. */
+    void record(String name, String outcome, long startNanos) {
+        recordMillis(name, outcome, (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    void recordMillis(String name, String outcome, long durationMs) {
+        String key = name + '\u0000' + outcome;
+        Series target = series.get(key);
+        if (target == null) {
+            target = series.computeIfAbsent(key, (ignored) -> new Series());
+        }
+        target.add(durationMs);
+        Listener current = listener;
+        if (current != null) {
+            current.onSample(name, outcome, durationMs);
+        }
+    }
+
+    /** Copies every histogram, optionally clearing them so the next snapshot only holds new samples. */
+    List<Histogram> snapshot(boolean reset) {
+        List<Histogram> result = new ArrayList<>(series.size());
+        for (Map.Entry<String, Series> entry : series.entrySet()) {
+            Series value = reset ? series.remove(entry.getKey()) : entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            int separator = entry.getKey().indexOf('\u0000');
+            long[] buckets = new long[value.buckets.length()];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = value.buckets.get(i);
+            }
+            result.add(
+                new Histogram(
+                    entry.getKey().substring(0, separator),
+                    entry.getKey().substring(separator + 1),
+                    value.count.get(),
+                    value.totalMs.get(),
+                    value.maxMs.get(),
+                    buckets
+                )
+            );
+        }
+        return result;
+    }
+}
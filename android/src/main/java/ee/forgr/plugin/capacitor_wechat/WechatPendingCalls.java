@@ -0,0 +1,193 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+import com.tencent.mm.opensdk.modelbase.BaseResp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calls waiting for a WeChat response, keyed by the {@code transaction} of the request that was sent. Any number of
+ * calls of the same type may be in flight at once. Each call gets a deadline for its type; a sweeper posted to
+ * {@code handler} for the earliest deadline hands expired calls to the {@link ExpiryListener}.
+ */
+final class WechatPendingCalls {
+
+    interface ExpiryListener {
+        void onExpired(Entry entry);
+    }
+
+    /** Completes a request that has no plugin call of its own, such as one item of a share batch. */
+    interface ResponseListener {
+        void onResponse(BaseResp resp);
+
+        void onExpired();
+    }
+
+    /** Counters since the plugin loaded. */
+    static final class Stats {
+
+        final int pending;
+        final long completed;
+        final long expired;
+
+        Stats(int pending, long completed, long expired) {
+            this.pending = pending;
+            this.completed = completed;
+            this.expired = expired;
+        }
+    }
+
+    /**
+     * Exactly one of {@code call} and {@code listener} is set. {@code result}, when set, resolves the call if the
+     * response carries no data of its own.
+     */
+    static final class Entry {
+
+        final int type;
+        final PluginCall call;
+        final ResponseListener listener;
+        final JSObject result;
+        final long deadline;
+        final long startedNanos = WechatMetrics.start();
+
+        Entry(int type, PluginCall call, ResponseListener listener, JSObject result, long deadline) {
+            this.type = type;
+            this.call = call;
+            this.listener = listener;
+            this.result = result;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Handler handler;
+    private final ExpiryListener listener;
+    private final Runnable sweeper = this::sweep;
+    private final Map<Integer, Long> timeouts = new HashMap<>();
+    // Insertion order lets a response without a transaction fall back to the oldest call of its type.
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long completed;
+    private long expired;
+
+    WechatPendingCalls(Handler handler, ExpiryListener listener) {
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /** Sets how long calls of {@code type} wait for a response; {@code 0} or less waits forever. */
+    synchronized void setTimeout(int type, long timeoutMs) {
+        timeouts.put(type, timeoutMs);
+    }
+
+    void register(String transaction, int type, PluginCall call) {
+        register(transaction, type, call, null);
+    }
+
+    void register(String transaction, int type, PluginCall call, JSObject result) {
+        add(transaction, type, call, null, result);
+    }
+
+    void register(String transaction, int type, ResponseListener listener) {
+        add(transaction, type, null, listener, null);
+    }
+
+    synchronized Entry remove(String transaction) {
+        return entries.remove(transaction);
+    }
+
+    /**
+     * Removes the call a response belongs to. Some responses (payments on older WeChat builds) come back without
+     * the transaction that was sent, so those resolve the oldest call of the same type. A transaction that matches no
+     * call, such as a replayed or late response, resolves nothing.
+     */
+    synchronized Entry take(int type, String transaction) {
+        Entry entry = find(type, transaction);
+        if (entry != null) {
+            completed++;
+        }
+        return entry;
+    }
+
+    synchronized Stats getStats() {
+        return new Stats(entries.size(), completed, expired);
+    }
+
+    /** Expires overdue calls now, for when the handler may have been held back by deep sleep. */
+    void sweep() {
+        List<Entry> overdue = new ArrayList<>();
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry next = iterator.next();
+                if (next.deadline <= now) {
+                    iterator.remove();
+                    overdue.add(next);
+                }
+            }
+            expired += overdue.size();
+            scheduleSweep();
+        }
+        for (Entry entry : overdue) {
+            listener.onExpired(entry);
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        handler.removeCallbacks(sweeper);
+    }
+
+    private synchronized void add(
+        String transaction,
+        int type,
+        PluginCall call,
+        ResponseListener listener,
+        JSObject result
+    ) {
+        Long timeoutMs = timeouts.get(type);
+        long deadline = timeoutMs != null && timeoutMs > 0
+            ? SystemClock.elapsedRealtime() + timeoutMs
+            : Long.MAX_VALUE;
+        entries.put(transaction, new Entry(type, call, listener, result, deadline));
+        scheduleSweep();
+    }
+
+    private Entry find(int type, String transaction) {
+        if (!TextUtils.isEmpty(transaction)) {
+            Entry entry = entries.get(transaction);
+            if (entry == null || entry.type != type) {
+                return null;
+            }
+            entries.remove(transaction);
+            return entry;
+        }
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.type == type) {
+                iterator.remove();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void scheduleSweep() {
+        handler.removeCallbacks(sweeper);
+        long next = Long.MAX_VALUE;
+        for (Entry entry : entries.values()) {
+            next = Math.min(next, entry.deadline);
+        }
+        if (next != Long.MAX_VALUE) {
+            handler.postDelayed(sweeper, Math.max(0, next - SystemClock.elapsedRealtime()));
+        }
+    }
+}
@@ -2,14 +2,44 @@ package ee.forgr.plugin.capacitor_wechat;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
+/**
+ * Stored appId and universal link. Values are read once into an in-memory snapshot. Besides SharedPreferences,
+ * {@link #persist} writes a few-byte binary mirror so a cold process started by WeChat's return intent can load
+ * the appId without parsing the preferences XML.
+ */
 final class WechatPreferences {
 
+    private static final String TAG = "CapacitorWechat";
+    private static final String MIRROR_FILE = "wechat-config.bin";
+    private static final int MIRROR_VERSION = 1;
+
+    /** Immutable view of the stored configuration. */
+    static final class Snapshot {
+
+        final String appId;
+        final String universalLink;
+
+        Snapshot(String appId, String universalLink) {
+            this.appId = appId;
+            this.universalLink = universalLink;
+        }
+    }
+
+    private static volatile Snapshot snapshot;
+    private static volatile SharedPreferences preferences;
+
     private WechatPreferences() {}
 
     static void persist(Context context, String appId, String universalLink) {
-        SharedPreferences prefs = context.getSharedPreferences(WechatConstants.PREFS_NAME, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
+        SharedPreferences.Editor editor = preferences(context).edit();
         editor.putString(WechatConstants.PREF_APP_ID, appId);
         if (universalLink != null) {
             editor.putString(WechatConstants.PREF_UNIVERSAL_LINK, universalLink);
@@ -17,15 +47,92 @@ final class WechatPreferences {
             editor.remove(WechatConstants.PREF_UNIVERSAL_LINK);
         }
         editor.apply();
+
+        Snapshot updated = new Snapshot(appId, universalLink);
+        snapshot = updated;
+        writeMirror(context, updated);
     }
 
     static String getAppId(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(WechatConstants.PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getString(WechatConstants.PREF_APP_ID, null);
+        return get(context).appId;
     }
 
     static String getUniversalLink(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(WechatConstants.PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getString(WechatConstants.PREF_UNIVERSAL_LINK, null);
+        return get(context).universalLink;
+    }
+
+    static Snapshot get(Context context) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (WechatPreferences.class) {
+            if (snapshot == null) {
+                Snapshot loaded = readMirror(context);
+                if (loaded == null) {
+                    // Written before the mirror existed: migrate once from SharedPreferences.
+                    SharedPreferences prefs = preferences(context);
+                    loaded = new Snapshot(
+                        prefs.getString(WechatConstants.PREF_APP_ID, null),
+                        prefs.getString(WechatConstants.PREF_UNIVERSAL_LINK, null)
+                    );
+                    if (loaded.appId != null) {
+                        writeMirror(context, loaded);
+                    }
+                }
+                snapshot = loaded;
+            }
+            return snapshot;
+        }
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        SharedPreferences current = preferences;
+        if (current == null) {
+            current = context.getApplicationContext().getSharedPreferences(
+                WechatConstants.PREFS_NAME,
+                Context.MODE_PRIVATE
+            );
+            preferences = current;
+        }
+        return current;
+    }
+
+    private static Snapshot readMirror(Context context) {
+        File file = new File(context.getFilesDir(), MIRROR_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            if (input.readByte() != MIRROR_VERSION) {
+                return null;
+            }
+            String appId = input.readUTF();
+            String universalLink = input.readBoolean() ? input.readUTF() : null;
+            return new Snapshot(appId.isEmpty() ? null : appId, universalLink);
+        } catch (IOException ex) {
+            Log.w(TAG, "Ignoring unreadable config mirror", ex);
+            return null;
+        }
+    }
+
+    private static synchronized void writeMirror(Context context, Snapshot value) {
+        File file = new File(context.getFilesDir(), MIRROR_FILE);
+        File temp = new File(context.getFilesDir(), MIRROR_FILE + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temp))) {
+            output.writeByte(MIRROR_VERSION);
+            output.writeUTF(value.appId == null ? "" : value.appId);
+            output.writeBoolean(value.universalLink != null);
+            if (value.universalLink != null) {
+                output.writeUTF(value.universalLink);
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write config mirror", ex);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
     }
 }
@@ -0,0 +1,93 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import com.getcapacitor.JSObject;
+import com.tencent.mm.opensdk.constants.ConstantsAPI;
+import com.tencent.mm.opensdk.modelbase.BaseReq;
+import com.tencent.mm.opensdk.modelmsg.LaunchFromWX;
+import com.tencent.mm.opensdk.modelmsg.ShowMessageFromWX;
+import com.tencent.mm.opensdk.modelmsg.WXAppExtendObject;
+import com.tencent.mm.opensdk.modelmsg.WXMediaMessage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Turns requests WeChat sends to the app, such as the "open app" button of a mini program, into event payloads.
+ * WeChat and activity recreation can hand over the same request several times in a row, so a request identical to
+ * one seen less than {@link #COALESCE_MS} earlier is dropped.
+ */
+final class WechatRequestEvents {
+
+    static final long COALESCE_MS = 1000;
+
+    private static final int MAX_RECENT = 8;
+
+    // Payload JSON to the time it was last seen.
+    private final Map<String, Long> recent = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_RECENT;
+        }
+    };
+
+    /** Returns the event for {@code req}, or {@code null} when it repeats a request that was just delivered. */
+    synchronized JSObject toEvent(BaseReq req) {
+        JSObject event = describe(req);
+        long now = SystemClock.elapsedRealtime();
+        Long last = recent.put(event.toString(), now);
+        if (last != null && now - last < COALESCE_MS) {
+            return null;
+        }
+        return event;
+    }
+
+    private static JSObject describe(BaseReq req) {
+        JSObject event = new JSObject();
+        event.put("type", typeName(req.getType()));
+        event.put("commandType", req.getType());
+        event.put("transaction", req.transaction);
+        event.put("openId", req.openId);
+        if (req instanceof ShowMessageFromWX.Req) {
+            ShowMessageFromWX.Req show = (ShowMessageFromWX.Req) req;
+            WXMediaMessage message = show.message;
+            if (message != null) {
+                event.put("extInfo", extInfo(message));
+                event.put("messageAction", message.messageAction);
+                event.put("title", message.title);
+                event.put("description", message.description);
+            }
+            event.put("lang", show.lang);
+            event.put("country", show.country);
+        } else if (req instanceof LaunchFromWX.Req) {
+            LaunchFromWX.Req launch = (LaunchFromWX.Req) req;
+            event.put("extInfo", launch.messageExt);
+            event.put("messageAction", launch.messageAction);
+            event.put("lang", launch.lang);
+            event.put("country", launch.country);
+        }
+        return event;
+    }
+
+    /** Mini programs pass their {@code app-parameter} as {@code messageExt}; older senders use the app object. */
+    private static String extInfo(WXMediaMessage message) {
+        if (!TextUtils.isEmpty(message.messageExt)) {
+            return message.messageExt;
+        }
+        if (message.mediaObject instanceof WXAppExtendObject) {
+            return ((WXAppExtendObject) message.mediaObject).extInfo;
+        }
+        return null;
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case ConstantsAPI.COMMAND_SHOWMESSAGE_FROM_WX:
+                return "showMessage";
+            case ConstantsAPI.COMMAND_LAUNCH_BY_WX:
+                return "launch";
+            default:
+                return "other";
+        }
+    }
+}
@@ -3,6 +3,7 @@ package ee.forgr.plugin.capacitor_wechat;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
+import com.tencent.mm.opensdk.constants.ConstantsAPI;
 import com.tencent.mm.opensdk.modelbase.BaseReq;
 import com.tencent.mm.opensdk.modelbase.BaseResp;
 import com.tencent.mm.opensdk.openapi.IWXAPI;
@@ -38,6 +39,10 @@ public class WechatResponseActivity extends Activity implements IWXAPIEventHandl
     @Override
     public void onReq(BaseReq baseReq) {
         WechatManager.getInstance().handleRequest(baseReq);
+        int type = baseReq.getType();
+        if (type == ConstantsAPI.COMMAND_SHOWMESSAGE_FROM_WX || type == ConstantsAPI.COMMAND_LAUNCH_BY_WX) {
+            openApp();
+        }
         finish();
     }
 
@@ -46,4 +51,14 @@ public class WechatResponseActivity extends Activity implements IWXAPIEventHandl
         WechatManager.getInstance().handleResponse(baseResp);
         finish();
     }
+
+    /** WeChat only starts this activity, so on a cold start the app itself has to be brought up to see the request. */
+    private void openApp() {
+        Intent launch = getPackageManager().getLaunchIntentForPackage(getPackageName());
+        if (launch == null) {
+            return;
+        }
+        launch.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        startActivity(launch);
+    }
 }
@@ -0,0 +1,151 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded worker pools for plugin work. Network and disk work runs on the I/O lane, decoding and encoding on the
+ * CPU lane, so a slow download never holds up a decode. Within a lane interactive work runs ahead of prefetch work,
+ * and every task can be cancelled through the token of the call that queued it. Work that only waits on the other
+ * lanes and assembles their results runs on the coordinator lane, so its waiting never holds an I/O or CPU worker.
+ */
+final class WechatScheduler {
+
+    private static final String TAG = "CapacitorWechat";
+
+    private static final int IO_THREADS = 3;
+    // Coordinators mostly wait, so a few more than the CPU lane keeps builds overlapping without unbounded threads.
+    private static final int COORDINATOR_THREADS = 4;
+    private static final int SLOW_QUEUE_WAIT_MS = 250;
+
+    enum Lane {
+        IO,
+        CPU,
+        /** Only waits on I/O and CPU tasks, never on other coordinator tasks. */
+        COORDINATOR
+    }
+
+    /** Declaration order is scheduling order. */
+    enum Priority {
+        INTERACTIVE,
+        PREFETCH
+    }
+
+    private final LaneExecutor io = new LaneExecutor(Lane.IO, IO_THREADS);
+    private final LaneExecutor cpu = new LaneExecutor(
+        Lane.CPU,
+        Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1))
+    );
+    private final LaneExecutor coordinators = new LaneExecutor(Lane.COORDINATOR, COORDINATOR_THREADS);
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Queues {@code work} on {@code lane}. When {@code token} is cancelled the task is dropped if still queued and
+     * interrupted if running.
+     */
+    <T> Task<T> submit(Lane lane, Priority priority, WechatCancellationToken token, Callable<T> work) {
+        LaneExecutor executor = lane == Lane.IO ? io : lane == Lane.CPU ? cpu : coordinators;
+        Task<T> task = new Task<>(executor, priority, sequence.getAndIncrement(), work);
+        if (token != null) {
+            task.registration = token.onCancel(() -> task.cancel(true));
+        }
+        if (!task.isDone()) {
+            executor.execute(task);
+        }
+        return task;
+    }
+
+    void shutdown() {
+        coordinators.shutdownNow();
+        io.shutdownNow();
+        cpu.shutdownNow();
+    }
+
+    /** A queued unit of work that knows its priority and when it was queued. */
+    static final class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+
+        private final LaneExecutor executor;
+        private final Priority priority;
+        private final long sequence;
+        private final long enqueuedAt = SystemClock.elapsedRealtime();
+        private volatile WechatCancellationToken.Registration registration;
+
+        private Task(LaneExecutor executor, Priority priority, long sequence, Callable<T> work) {
+            super(work);
+            this.executor = executor;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (!isDone()) {
+                executor.recordWait(priority, SystemClock.elapsedRealtime() - enqueuedAt);
+            }
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            WechatCancellationToken.Registration current = registration;
+            if (current != null) {
+                current.unregister();
+            }
+            if (isCancelled()) {
+                executor.remove(this);
+            }
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final class LaneExecutor extends ThreadPoolExecutor {
+
+        private final Lane lane;
+        private final String metricName;
+
+        LaneExecutor(Lane lane, int threads) {
+            super(threads, threads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), new LaneThreadFactory(lane));
+            this.lane = lane;
+            this.metricName = "queue." + lane.name().toLowerCase(Locale.ROOT);
+            allowCoreThreadTimeOut(true);
+        }
+
+        void recordWait(Priority priority, long waitMs) {
+            WechatMetrics.getInstance().recordMillis(metricName, priority.name().toLowerCase(Locale.ROOT), waitMs);
+            if (waitMs >= SLOW_QUEUE_WAIT_MS) {
+                Log.d(TAG, lane + " task waited " + waitMs + "ms in queue");
+            }
+        }
+    }
+
+    private static final class LaneThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        LaneThreadFactory(Lane lane) {
+            this.prefix = "wechat-" + lane.name().toLowerCase(Locale.ROOT) + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
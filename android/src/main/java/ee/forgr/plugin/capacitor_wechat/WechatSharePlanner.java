@@ -0,0 +1,94 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.util.Log;
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+/**
+ * Fits one share into the limits the WeChat SDK checks before {@code sendReq}, so an oversized payload is fixed
+ * while it is built instead of failing after the switch to WeChat. Text fields are truncated up front, URLs that
+ * cannot be shortened are rejected, and the thumbnail gets a byte budget plus an edge length that the first encode
+ * usually fits. Every change is recorded and returned to JS as {@code adjustments}.
+ */
+final class WechatSharePlanner {
+
+    static final int THUMB_BYTES = 64 * 1024;
+    static final int MINI_PROGRAM_THUMB_BYTES = 128 * 1024;
+    static final int TITLE_CHARS = 512;
+    static final int DESCRIPTION_CHARS = 1024;
+    static final int TEXT_CHARS = 10 * 1024;
+    static final int URL_CHARS = 10 * 1024;
+
+    private static final String TAG = "CapacitorWechat";
+    // What a photo thumbnail costs as JPEG at the encoder's starting quality.
+    private static final double BITS_PER_PIXEL = 2.0;
+    private static final String ELLIPSIS = "\u2026";
+
+    final int thumbBytes;
+    final int thumbMaxSize;
+    private final JSArray adjustments = new JSArray();
+
+    private WechatSharePlanner(int thumbBytes) {
+        this.thumbBytes = thumbBytes;
+        this.thumbMaxSize = (int) Math.sqrt(thumbBytes * 8 / BITS_PER_PIXEL);
+    }
+
+    static WechatSharePlanner forType(String type) {
+        return new WechatSharePlanner("miniprogram".equals(type) ? MINI_PROGRAM_THUMB_BYTES : THUMB_BYTES);
+    }
+
+    String title(String value) {
+        return truncate("title", value, TITLE_CHARS);
+    }
+
+    String description(String value) {
+        return truncate("description", value, DESCRIPTION_CHARS);
+    }
+
+    String text(String value) {
+        return truncate("text", value, TEXT_CHARS);
+    }
+
+    /** A cut URL would point somewhere else, so an overlong one fails the share instead. */
+    String url(String field, String value) {
+        if (value != null && value.length() > URL_CHARS) {
+            throw new IllegalArgumentException(field + " exceeds WeChat's limit of " + URL_CHARS + " characters.");
+        }
+        return value;
+    }
+
+    /** Returns {@code data}, or {@code null} when even the smallest encode is over budget and WeChat would drop it. */
+    byte[] thumb(byte[] data) {
+        if (data != null && data.length > thumbBytes) {
+            record("thumbData", "dropped", thumbBytes, data.length);
+            return null;
+        }
+        return data;
+    }
+
+    JSArray getAdjustments() {
+        return adjustments;
+    }
+
+    private String truncate(String field, String value, int limit) {
+        if (value == null || value.length() <= limit) {
+            return value;
+        }
+        int end = limit - ELLIPSIS.length();
+        if (Character.isHighSurrogate(value.charAt(end - 1))) {
+            end--;
+        }
+        record(field, "truncated", limit, value.length());
+        return value.substring(0, end) + ELLIPSIS;
+    }
+
+    private void record(String field, String action, int limit, int original) {
+        Log.w(TAG, "Share " + field + " " + action + ": " + original + " over limit " + limit);
+        JSObject adjustment = new JSObject();
+        adjustment.put("field", field);
+        adjustment.put("action", action);
+        adjustment.put("limit", limit);
+        adjustment.put("original", original);
+        adjustments.put(adjustment);
+    }
+}
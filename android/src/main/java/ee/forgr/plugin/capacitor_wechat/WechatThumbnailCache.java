@@ -0,0 +1,148 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.LruCache;
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Memory-bounded LRU of encoded {@code thumbData}, keyed by source and target size, so sharing the same card
+ * twice in a row skips decode, scale and compress. Registered as a {@link ComponentCallbacks2} to shrink under
+ * memory pressure.
+ */
+final class WechatThumbnailCache implements ComponentCallbacks2 {
+
+    private static final int MAX_BYTES = (int) Math.min(4L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 64);
+    // Remote sources can change behind the same URL; the disk cache revalidates them once this expires.
+    private static final long ENTRY_TTL_MS = 5 * 60 * 1000;
+    private static final int DIGEST_CHUNK = 8192;
+
+    private static final WechatThumbnailCache INSTANCE = new WechatThumbnailCache();
+
+    private final LruCache<String, Entry> cache = new LruCache<String, Entry>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, Entry value) {
+            return value.data.length;
+        }
+    };
+    private boolean registered;
+
+    private WechatThumbnailCache() {}
+
+    static WechatThumbnailCache getInstance() {
+        return INSTANCE;
+    }
+
+    synchronized void register(Context context) {
+        if (!registered) {
+            context.getApplicationContext().registerComponentCallbacks(this);
+            registered = true;
+        }
+    }
+
+    synchronized void unregister(Context context) {
+        if (registered) {
+            context.getApplicationContext().unregisterComponentCallbacks(this);
+            registered = false;
+        }
+    }
+
+    byte[] get(String key) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.createdAt > ENTRY_TTL_MS) {
+            cache.remove(key);
+            return null;
+        }
+        return entry.data;
+    }
+
+    void put(String key, byte[] data) {
+        if (data != null && data.length <= MAX_BYTES) {
+            cache.put(key, new Entry(data, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    void clear() {
+        cache.evictAll();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.evictAll();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        cache.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    /**
+     * Local files include their modification time so an overwritten file is not served stale. {@code data:} URLs are
+     * digested rather than used verbatim to keep multi-megabyte strings out of the key set.
+     */
+    static String keyFor(String source, int maxSize, int maxBytes) {
+        String identity = source;
+        if (source.startsWith("data:")) {
+            identity = "data:" + digest(source);
+        } else {
+            File file = null;
+            if (source.startsWith("file://")) {
+                file = new File(Uri.parse(source).getPath());
+            } else if (!source.contains("://")) {
+                file = new File(source);
+            }
+            if (file != null && file.exists()) {
+                identity = file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
+            }
+        }
+        return identity + "@" + maxSize + "/" + maxBytes;
+    }
+
+    private static String digest(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] chunk = new byte[DIGEST_CHUNK];
+            int length = value.length();
+            for (int start = 0; start < length; start += DIGEST_CHUNK) {
+                int count = Math.min(DIGEST_CHUNK, length - start);
+                for (int i = 0; i < count; i++) {
+                    chunk[i] = (byte) value.charAt(start + i);
+                }
+                digest.update(chunk, 0, count);
+            }
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            return value.length() + ":" + value.hashCode();
+        }
+    }
+
+    private static final class Entry {
+
+        final byte[] data;
+        final long createdAt;
+
+        Entry(byte[] data, long createdAt) {
+            this.data = data;
+            this.createdAt = createdAt;
+        }
+    }
+}
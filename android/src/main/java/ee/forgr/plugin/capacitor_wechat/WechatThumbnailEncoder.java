@@ -0,0 +1,138 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+
+/**
+ * Encodes a thumbnail under a byte budget in as few {@code compress()} calls as possible. The first encode
+ * measures the image; its size drives either a single quality step or a resize sized to the budget, and a
+ * quality search only runs when that estimate misses. Every attempt reuses one per-thread output buffer.
+ */
+final class WechatThumbnailEncoder {
+
+    enum Format {
+        JPEG,
+        WEBP;
+
+        static Format fromConfig(String value) {
+            return "webp".equalsIgnoreCase(value) ? WEBP : JPEG;
+        }
+    }
+
+    static final class Result {
+
+        final byte[] data;
+        final Format format;
+        final int quality;
+        final int attempts;
+
+        Result(byte[] data, Format format, int quality, int attempts) {
+            this.data = data;
+            this.format = format;
+            this.quality = quality;
+            this.attempts = attempts;
+        }
+    }
+
+    private static final int INITIAL_QUALITY = 85;
+    private static final int REDUCED_QUALITY = 60;
+    private static final int MIN_QUALITY = 10;
+    // Going from INITIAL_QUALITY to REDUCED_QUALITY roughly halves a photo, so larger overshoots resize instead.
+    private static final double REDUCED_QUALITY_RATIO = 0.55;
+    // Encoded size scales with pixel count; aim a little under the budget so the resized encode lands inside it.
+    private static final double RESIZE_HEADROOM = 0.9;
+    private static final int MAX_ATTEMPTS = 6;
+
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(64 * 1024);
+        }
+    };
+
+    private WechatThumbnailEncoder() {}
+
+    static Result encode(Bitmap bitmap, int maxBytes, Format format) {
+        ByteArrayOutputStream buffer = BUFFER.get();
+        int attempts = 1;
+        int size = compress(bitmap, INITIAL_QUALITY, format, buffer);
+        if (size <= maxBytes) {
+            return new Result(buffer.toByteArray(), format, INITIAL_QUALITY, attempts);
+        }
+
+        Bitmap target = bitmap;
+        int quality = INITIAL_QUALITY;
+        if (size * REDUCED_QUALITY_RATIO <= maxBytes) {
+            quality = REDUCED_QUALITY;
+        } else {
+            double scale = Math.sqrt(((double) maxBytes / size) * RESIZE_HEADROOM);
+            int width = Math.max(1, (int) (bitmap.getWidth() * scale));
+            int height = Math.max(1, (int) (bitmap.getHeight() * scale));
+            target = WechatBitmapPool.getInstance().scale(bitmap, width, height);
+        }
+        try {
+            attempts++;
+            size = compress(target, quality, format, buffer);
+            if (size <= maxBytes) {
+                return new Result(buffer.toByteArray(), format, quality, attempts);
+            }
+
+            // The estimate missed; binary search the quality, keeping the best encode that fits.
+            byte[] best = null;
+            int bestQuality = MIN_QUALITY;
+            int low = MIN_QUALITY;
+            int high = quality - 1;
+            while (low <= high && attempts < MAX_ATTEMPTS) {
+                int mid = (low + high) >>> 1;
+                attempts++;
+                size = compress(target, mid, format, buffer);
+                if (size <= maxBytes) {
+                    best = buffer.toByteArray();
+                    bestQuality = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (best == null) {
+                attempts++;
+                compress(target, MIN_QUALITY, format, buffer);
+                best = buffer.toByteArray();
+            }
+            return new Result(best, format, bestQuality, attempts);
+        } finally {
+            if (target != bitmap) {
+                WechatBitmapPool.getInstance().release(target);
+            }
+        }
+    }
+
+    static String describe(Result result) {
+        return String.format(
+            Locale.US,
+            "%s q%d, %d bytes in %d attempt(s)",
+            result.format.name().toLowerCase(Locale.US),
+            result.quality,
+            result.data.length,
+            result.attempts
+        );
+    }
+
+    private static int compress(Bitmap bitmap, int quality, Format format, ByteArrayOutputStream buffer) {
+        buffer.reset();
+        bitmap.compress(compressFormat(format), quality, buffer);
+        return buffer.size();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat compressFormat(Format format) {
+        if (format == Format.WEBP) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSY
+                : Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.JPEG;
+    }
+}
@@ -0,0 +1,92 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.getcapacitor.JSArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** {@link WechatCardList} converting invoice selections, including malformed ones. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class WechatCardListTest {
+
+    private static final String CARDS =
+        "[{\"card_id\":\"c1\",\"encrypt_code\":\"e1\",\"app_id\":\"wx1\"}," +
+        "{\"card_id\":\"c2\",\"encrypt_code\":\"e2\"}]";
+
+    @Test
+    public void readsCardIdAndEncryptCode() {
+        JSArray cards = WechatCardList.parse(CARDS, false);
+
+        assertEquals(2, cards.length());
+        JSONObject first = cards.optJSONObject(0);
+        assertEquals("c1", first.optString("cardId"));
+        assertEquals("e1", first.optString("encryptCode"));
+        assertFalse(first.has("fields"));
+        assertEquals("c2", cards.optJSONObject(1).optString("cardId"));
+    }
+
+    @Test
+    public void rawFieldsCopiesEveryFieldAsSent() {
+        String list =
+            "[{\"card_id\":\"c1\",\"encrypt_code\":\"e1\",\"amount\":1999,\"rate\":0.5,\"paid\":true," +
+            "\"memo\":null,\"tags\":[\"a\",\"b\"],\"title\":{\"name\":\"ACME\"}}]";
+
+        JSONObject card = WechatCardList.parse(list, true).optJSONObject(0);
+
+        assertEquals("c1", card.optString("cardId"));
+        JSONObject fields = card.optJSONObject("fields");
+        assertEquals(8, fields.length());
+        assertEquals("c1", fields.optString("card_id"));
+        assertEquals(1999L, fields.optLong("amount", -1));
+        assertEquals(0.5, fields.optDouble("rate", -1), 0);
+        assertTrue(fields.optBoolean("paid", false));
+        assertSame(JSONObject.NULL, fields.opt("memo"));
+        assertEquals("b", fields.optJSONArray("tags").optString(1));
+        assertEquals("ACME", fields.optJSONObject("title").optString("name"));
+    }
+
+    @Test
+    public void nonTextIdsBecomeEmptyStringsAndNumbersText() {
+        String list = "[{\"card_id\":123,\"encrypt_code\":null},{\"card_id\":{\"id\":\"c\"},\"encrypt_code\":[1]}]";
+
+        JSArray cards = WechatCardList.parse(list, false);
+
+        assertEquals("123", cards.optJSONObject(0).optString("cardId"));
+        assertEquals("", cards.optJSONObject(0).optString("encryptCode"));
+        assertEquals("", cards.optJSONObject(1).optString("cardId"));
+        assertEquals("", cards.optJSONObject(1).optString("encryptCode"));
+    }
+
+    @Test
+    public void skipsEntriesThatAreNotObjects() {
+        JSArray cards = WechatCardList.parse("[1,\"c0\",null,[],{\"card_id\":\"c1\"}]", false);
+
+        assertEquals(1, cards.length());
+        assertEquals("c1", cards.optJSONObject(0).optString("cardId"));
+        assertEquals("", cards.optJSONObject(0).optString("encryptCode"));
+    }
+
+    @Test
+    public void truncatedInputKeepsTheCardsReadBeforeTheError() {
+        JSArray cards = WechatCardList.parse("[{\"card_id\":\"c1\",\"encrypt_code\":\"e1\"},{\"card_id\":", true);
+
+        assertEquals(1, cards.length());
+        assertEquals("c1", cards.optJSONObject(0).optString("cardId"));
+    }
+
+    @Test
+    public void inputThatIsNotAListYieldsNoCards() {
+        assertEquals(0, WechatCardList.parse(null, false).length());
+        assertEquals(0, WechatCardList.parse("", false).length());
+        assertEquals(0, WechatCardList.parse("{\"card_id\":\"c1\"}", false).length());
+        assertEquals(0, WechatCardList.parse("not json", false).length());
+    }
+}
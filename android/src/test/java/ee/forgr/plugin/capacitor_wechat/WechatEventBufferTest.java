@@ -0,0 +1,133 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.tencent.mm.opensdk.modelbase.BaseReq;
+import com.tencent.mm.opensdk.modelbase.BaseResp;
+import com.tencent.mm.opensdk.modelmsg.LaunchFromWX;
+import com.tencent.mm.opensdk.modelmsg.SendMessageToWX;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowSystemClock;
+
+/** {@link WechatEventBuffer} holding events for a plugin that is not listening yet. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class WechatEventBufferTest {
+
+    private final WechatEventBuffer buffer = new WechatEventBuffer();
+
+    @Test
+    public void keepsEventsUntilTheirTtlRunsOut() {
+        buffer.add(response("share-1", BaseResp.ErrCode.ERR_OK));
+        ShadowSystemClock.advanceBy(Duration.ofMillis(WechatEventBuffer.TTL_MS / 2));
+        buffer.add(response("share-2", BaseResp.ErrCode.ERR_OK));
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(WechatEventBuffer.TTL_MS / 2 - 1));
+        assertEquals(2, buffer.getStats().buffered);
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(1));
+        WechatEventBuffer.Stats stats = buffer.getStats();
+        assertEquals(1, stats.buffered);
+        assertEquals(1, stats.dropped);
+
+        Recorder recorder = new Recorder();
+        buffer.drainTo(recorder);
+        assertEquals(1, recorder.events.size());
+        assertEquals("share-2", ((BaseResp) recorder.events.get(0)).transaction);
+    }
+
+    @Test
+    public void dropsOldestEventsBeyondTheCap() {
+        for (int i = 0; i <= WechatEventBuffer.MAX_EVENTS; i++) {
+            buffer.add(response("share-" + i, BaseResp.ErrCode.ERR_OK));
+        }
+
+        WechatEventBuffer.Stats stats = buffer.getStats();
+        assertEquals(WechatEventBuffer.MAX_EVENTS, stats.buffered);
+        assertEquals(1, stats.dropped);
+
+        Recorder recorder = new Recorder();
+        buffer.drainTo(recorder);
+        assertEquals(WechatEventBuffer.MAX_EVENTS, recorder.events.size());
+        assertEquals("share-1", ((BaseResp) recorder.events.get(0)).transaction);
+        assertEquals("share-16", ((BaseResp) recorder.events.get(15)).transaction);
+    }
+
+    @Test
+    public void newerEventForTheSameTransactionReplacesTheOlderOne() {
+        buffer.add(response("share-a", BaseResp.ErrCode.ERR_USER_CANCEL));
+        buffer.add(response("share-b", BaseResp.ErrCode.ERR_OK));
+        BaseResp retry = response("share-a", BaseResp.ErrCode.ERR_OK);
+        buffer.add(retry);
+
+        Recorder recorder = new Recorder();
+        buffer.drainTo(recorder);
+
+        assertEquals(2, recorder.events.size());
+        assertEquals("share-b", ((BaseResp) recorder.events.get(0)).transaction);
+        assertSame(retry, recorder.events.get(1));
+        assertEquals(1, buffer.getStats().dropped);
+    }
+
+    @Test
+    public void eventsWithoutTransactionAreNeverCoalesced() {
+        buffer.add(response("", BaseResp.ErrCode.ERR_OK));
+        buffer.add(response(null, BaseResp.ErrCode.ERR_OK));
+        buffer.add(request(""));
+
+        assertEquals(3, buffer.getStats().buffered);
+    }
+
+    @Test
+    public void requestsAndResponsesAreKeptApart() {
+        BaseResp response = response("tx", BaseResp.ErrCode.ERR_OK);
+        BaseReq request = request("tx");
+        buffer.add(response);
+        buffer.add(request);
+
+        Recorder recorder = new Recorder();
+        buffer.drainTo(recorder);
+
+        assertEquals(2, recorder.events.size());
+        assertSame(response, recorder.events.get(0));
+        assertSame(request, recorder.events.get(1));
+        WechatEventBuffer.Stats stats = buffer.getStats();
+        assertEquals(0, stats.buffered);
+        assertEquals(2, stats.replayed);
+    }
+
+    private static BaseResp response(String transaction, int errCode) {
+        SendMessageToWX.Resp resp = new SendMessageToWX.Resp();
+        resp.transaction = transaction;
+        resp.errCode = errCode;
+        return resp;
+    }
+
+    private static BaseReq request(String transaction) {
+        LaunchFromWX.Req req = new LaunchFromWX.Req();
+        req.transaction = transaction;
+        return req;
+    }
+
+    private static final class Recorder implements WechatResponseListener {
+
+        final List<Object> events = new ArrayList<>();
+
+        @Override
+        public void onWechatResponse(BaseResp resp) {
+            events.add(resp);
+        }
+
+        @Override
+        public void onWechatRequest(BaseReq req) {
+            events.add(req);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** {@link WechatHttpClient} and {@link WechatMediaCache} against a loopback HTTP/1.1 server. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class WechatHttpClientTest {
+
+    private static final byte[] BODY = "hello wechat, hello wechat, hello wechat".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger opened = new AtomicInteger();
+    private LocalServer server;
+    private WechatHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalServer();
+        client = new WechatHttpClient((url) -> {
+            opened.incrementAndGet();
+            return (HttpURLConnection) url.openConnection();
+        });
+        client.setTimeouts(2000, 2000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void reusesConnectionForSequentialRequests() throws IOException {
+        server.handler = (request) -> LocalServer.response(200, "OK", BODY);
+
+        assertArrayEquals(BODY, get(server.url("/thumb.jpg")));
+        assertArrayEquals(BODY, get(server.url("/image.jpg")));
+
+        assertEquals(2, opened.get());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void decodesGzipBodies() throws IOException {
+        server.handler = (request) -> LocalServer.response(200, "OK", gzip(BODY), "Content-Encoding: gzip");
+
+        try (WechatHttpClient.Response response = client.get(server.url("/a"), null, new WechatCancellationToken())) {
+            assertEquals(-1, response.contentLength());
+            assertArrayEquals(BODY, readAll(response.body()));
+        }
+        assertEquals("gzip", server.requests.get(0).get("accept-encoding"));
+    }
+
+    @Test
+    public void revalidatesStaleEntriesWithNotModified() throws IOException {
+        server.handler = (request) -> {
+            String[] headers = { "ETag: \"v1\"", "Cache-Control: no-cache" };
+            if ("\"v1\"".equals(request.get("if-none-match"))) {
+                return LocalServer.response(304, "Not Modified", new byte[0], headers);
+            }
+            return LocalServer.response(200, "OK", BODY, headers);
+        };
+        WechatMediaCache cache = new WechatMediaCache(folder.newFolder("media"), client);
+        String url = server.url("/image.jpg");
+
+        try (WechatMediaCache.Lease lease = cache.fetch(url, new WechatCancellationToken())) {
+            assertArrayEquals(BODY, Files.readAllBytes(lease.file.toPath()));
+        }
+        try (WechatMediaCache.Lease lease = cache.fetch(url, new WechatCancellationToken())) {
+            assertArrayEquals(BODY, Files.readAllBytes(lease.file.toPath()));
+        }
+
+        WechatMediaCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.revalidations);
+        assertEquals(2, server.requests.size());
+        assertEquals("\"v1\"", server.requests.get(1).get("if-none-match"));
+    }
+
+    @Test
+    public void clearKeepsLeasedBodiesUntilClosed() throws IOException {
+        server.handler = (request) -> LocalServer.response(200, "OK", BODY);
+        WechatMediaCache cache = new WechatMediaCache(folder.newFolder("media"), client);
+
+        WechatMediaCache.Lease lease = cache.fetch(server.url("/image.jpg"), new WechatCancellationToken());
+        cache.clear();
+        assertTrue(lease.file.exists());
+        assertEquals(0, cache.getStats().entryCount);
+
+        lease.close();
+        assertFalse(lease.file.exists());
+    }
+
+    @Test
+    public void clearLeavesInFlightDownloadsAlone() throws IOException {
+        server.handler = (request) -> LocalServer.response(200, "OK", BODY);
+        File directory = folder.newFolder("media");
+        WechatMediaCache cache = new WechatMediaCache(directory, client);
+        cache.fetch(server.url("/image.jpg"), new WechatCancellationToken()).close();
+        File download = File.createTempFile("key", ".tmp", directory);
+
+        cache.clear();
+
+        assertTrue(download.exists());
+        assertEquals(0, cache.getStats().entryCount);
+    }
+
+    @Test
+    public void cancelAbortsRequestWaitingForHeaders() throws Exception {
+        CountDownLatch received = new CountDownLatch(1);
+        server.handler = (request) -> {
+            received.countDown();
+            return null;
+        };
+        WechatCancellationToken token = new WechatCancellationToken();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<WechatHttpClient.Response> pending = executor.submit(() ->
+                client.get(server.url("/slow"), null, token)
+            );
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+
+            token.cancel();
+
+            try {
+                pending.get(5, TimeUnit.SECONDS).close();
+                fail("Expected the request to be cancelled");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof WechatCancellationToken.CancelledException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cancelledTokenNeverConnects() throws IOException {
+        WechatCancellationToken token = new WechatCancellationToken();
+        token.cancel();
+
+        try {
+            client.get(server.url("/a"), null, token);
+            fail("Expected the request to be cancelled");
+        } catch (WechatCancellationToken.CancelledException expected) {
+            assertEquals(0, opened.get());
+        }
+    }
+
+    private byte[] get(String url) throws IOException {
+        try (WechatHttpClient.Response response = client.get(url, null, new WechatCancellationToken())) {
+            assertEquals(200, response.code);
+            return readAll(response.body());
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream stream = new GZIPOutputStream(output)) {
+            stream.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    /** Serves one scripted response per request, keeping connections open between requests. */
+    private static final class LocalServer implements Closeable {
+
+        interface Handler {
+            /** Returns the raw response, or {@code null} to never answer. */
+            byte[] respond(Map<String, String> request) throws IOException;
+        }
+
+        final AtomicInteger connections = new AtomicInteger();
+        final List<Map<String, String>> requests = Collections.synchronizedList(new ArrayList<>());
+        volatile Handler handler;
+        private final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        LocalServer() throws IOException {
+            Thread thread = new Thread(this::accept, "local-http");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + socket.getLocalPort() + path;
+        }
+
+        static byte[] response(int code, String reason, byte[] body, String... headers) throws IOException {
+            StringBuilder head = new StringBuilder("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n");
+            for (String header : headers) {
+                head.append(header).append("\r\n");
+            }
+            head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            output.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+            output.write(body);
+            return output.toByteArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket client = socket.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(() -> serve(client), "local-http-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException closed) {
+                // close() ends the accept loop.
+            }
+        }
+
+        private void serve(Socket client) {
+            try (Socket connection = client) {
+                InputStream input = new BufferedInputStream(connection.getInputStream());
+                OutputStream output = connection.getOutputStream();
+                Map<String, String> request;
+                while ((request = readRequest(input)) != null) {
+                    requests.add(request);
+                    byte[] response = handler.respond(request);
+                    if (response == null) {
+                        // Hold the connection until the client gives up on it.
+                        while (input.read() != -1) {}
+                        return;
+                    }
+                    output.write(response);
+                    output.flush();
+                }
+            } catch (IOException ignored) {
+                // The client went away.
+            }
+        }
+
+        /** Returns the request headers with lower-case names, or {@code null} at end of stream. */
+        private static Map<String, String> readRequest(InputStream input) throws IOException {
+            String requestLine = readLine(input);
+            if (requestLine == null || requestLine.isEmpty()) {
+                return null;
+            }
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(input)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                    headers.put(name, line.substring(colon + 1).trim());
+                }
+            }
+            return headers;
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = input.read()) != -1) {
+                if (c == '\n') {
+                    int length = line.length();
+                    boolean crlf = length > 0 && line.charAt(length - 1) == '\r';
+                    return crlf ? line.substring(0, length - 1) : line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+}
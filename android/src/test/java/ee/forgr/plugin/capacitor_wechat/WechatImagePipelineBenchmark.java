@@ -0,0 +1,204 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import static org.junit.Assert.assertNotNull;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+/**
+ * Time and allocations per operation of the {@link WechatImageHelper} pipeline over a fixed, generated corpus:
+ * three sizes, each as opaque JPEG, opaque PNG, translucent PNG and translucent WebP. Native graphics mode runs
+ * the real Skia codecs on the JVM, so numbers track the device code paths without a device.
+ *
+ * <p>Excluded from the regular test run; use {@code ./gradlew testDebugUnitTest -Pbenchmark}. Allocations are
+ * Java heap bytes of the calling thread; bitmap pixels live in native memory and are not counted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class WechatImagePipelineBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MIN_ITERATIONS = 5;
+    private static final int MAX_ITERATIONS = 50;
+    private static final long MIN_MEASURE_NANOS = 1_000_000_000L;
+    private static final long SEED = 0x5EC0DE;
+    private static final int[][] SIZES = { { 256, 256 }, { 1080, 1440 }, { 3024, 4032 } };
+
+    private interface Operation {
+        Object run(Bitmap input) throws Exception;
+    }
+
+    private static final class Sample {
+
+        final String name;
+        final Bitmap bitmap;
+        final String dataUrl;
+
+        Sample(String name, Bitmap bitmap, String dataUrl) {
+            this.name = name;
+            this.bitmap = bitmap;
+            this.dataUrl = dataUrl;
+        }
+    }
+
+    private final List<Sample> corpus = new ArrayList<>();
+    private final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // Results feed this so the JIT cannot drop the measured work.
+    private long sink;
+
+    @Before
+    public void buildCorpus() {
+        Random random = new Random(SEED);
+        for (int[] size : SIZES) {
+            Bitmap opaque = render(size[0], size[1], false, random);
+            Bitmap translucent = render(size[0], size[1], true, random);
+            String label = size[0] + "x" + size[1];
+            corpus.add(sample(label + " jpeg", opaque, Bitmap.CompressFormat.JPEG, "image/jpeg"));
+            corpus.add(sample(label + " png", opaque, Bitmap.CompressFormat.PNG, "image/png"));
+            corpus.add(sample(label + " png+alpha", translucent, Bitmap.CompressFormat.PNG, "image/png"));
+            corpus.add(sample(label + " webp+alpha", translucent, Bitmap.CompressFormat.WEBP_LOSSLESS, "image/webp"));
+        }
+    }
+
+    @After
+    public void recycleCorpus() {
+        WechatBitmapPool.getInstance().clear();
+        for (Sample sample : corpus) {
+            if (!sample.bitmap.isRecycled()) {
+                sample.bitmap.recycle();
+            }
+        }
+        corpus.clear();
+    }
+
+    @Test
+    public void buildThumbnail() throws Exception {
+        for (Sample sample : corpus) {
+            measure(
+                "buildThumbnail",
+                sample,
+                false,
+                (input) -> WechatImageHelper.buildThumbnail(input, WechatSharePlanner.THUMB_BYTES)
+            );
+        }
+    }
+
+    @Test
+    public void scaleDown() throws Exception {
+        for (Sample sample : corpus) {
+            // scaleDown hands its input to the bitmap pool, so every iteration gets its own copy.
+            measure("scaleDown", sample, true, (input) -> {
+                Bitmap scaled = WechatImageHelper.scaleDown(input, WechatImageHelper.THUMB_MAX_SIZE);
+                int pixels = scaled.getWidth() * scaled.getHeight();
+                WechatBitmapPool.getInstance().release(scaled);
+                return pixels;
+            });
+        }
+    }
+
+    @Test
+    public void decodeDataUrl() throws Exception {
+        for (Sample sample : corpus) {
+            measure("decodeDataUrl", sample, false, (ignored) -> {
+                Bitmap bitmap = WechatImageHelper.loadBitmap(
+                    null,
+                    sample.dataUrl,
+                    WechatImageHelper.IMAGE_MAX_SIZE,
+                    false,
+                    new WechatCancellationToken()
+                );
+                int pixels = bitmap.getWidth() * bitmap.getHeight();
+                WechatBitmapPool.getInstance().release(bitmap);
+                return pixels;
+            });
+        }
+    }
+
+    @Test
+    public void bitmapToBytes() throws Exception {
+        for (Sample sample : corpus) {
+            measure("bitmapToBytes", sample, false, WechatImageHelper::bitmapToBytes);
+        }
+    }
+
+    /** Runs {@code body} on the sample's bitmap, or on an untimed fresh copy of it when {@code copyInput} is set. */
+    private void measure(String operation, Sample sample, boolean copyInput, Operation body) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            consume(body.run(input(sample, copyInput)));
+        }
+        long allocated = 0;
+        long elapsed = 0;
+        int iterations = 0;
+        do {
+            Bitmap input = input(sample, copyInput);
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long started = System.nanoTime();
+            Object result = body.run(input);
+            elapsed += System.nanoTime() - started;
+            allocated += threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            consume(result);
+            iterations++;
+        } while (iterations < MAX_ITERATIONS && (iterations < MIN_ITERATIONS || elapsed < MIN_MEASURE_NANOS));
+        System.out.println(
+            String.format(
+                Locale.ROOT,
+                "%-16s %-22s %5d ops %10.3f ms/op %12d B/op",
+                operation,
+                sample.name,
+                iterations,
+                elapsed / 1e6 / iterations,
+                allocated / iterations
+            )
+        );
+    }
+
+    private static Bitmap input(Sample sample, boolean copy) {
+        return copy ? sample.bitmap.copy(sample.bitmap.getConfig(), true) : sample.bitmap;
+    }
+
+    private void consume(Object result) {
+        assertNotNull(result);
+        sink += result instanceof byte[] ? ((byte[]) result).length : result.hashCode();
+    }
+
+    private static Sample sample(String name, Bitmap bitmap, Bitmap.CompressFormat format, String mimeType) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(format, 90, stream);
+        String dataUrl = "data:" + mimeType + ";base64," + Base64.encodeToString(stream.toByteArray(), Base64.NO_WRAP);
+        return new Sample(name, bitmap, dataUrl);
+    }
+
+    /** A gradient with seeded noise: smooth enough to resemble a photo, noisy enough that encoders do real work. */
+    private static Bitmap render(int width, int height, boolean alpha, Random random) {
+        int[] row = new int[width];
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                int red = (x * 255 / width + noise) & 0xFF;
+                int green = (y * 255 / height + noise) & 0xFF;
+                int blue = ((x + y) * 127 / (width + height) + noise) & 0xFF;
+                int a = alpha ? 64 + (x * 191 / width) : 0xFF;
+                row[x] = (a << 24) | (red << 16) | (green << 8) | blue;
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        bitmap.setHasAlpha(alpha);
+        return bitmap;
+    }
+}
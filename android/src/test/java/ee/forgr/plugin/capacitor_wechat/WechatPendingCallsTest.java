@@ -0,0 +1,152 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.tencent.mm.opensdk.modelbase.BaseResp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowSystemClock;
+
+/** {@link WechatPendingCalls} matching responses to calls and expiring them on the main looper. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class WechatPendingCallsTest {
+
+    private static final int SHARE = 2;
+    private static final int PAY = 5;
+
+    private final List<WechatPendingCalls.Entry> expired = new ArrayList<>();
+    private WechatPendingCalls calls;
+
+    @Before
+    public void setUp() {
+        calls = new WechatPendingCalls(new Handler(Looper.getMainLooper()), expired::add);
+    }
+
+    @Test
+    public void concurrentCallsOfSameTypeMatchByTransaction() {
+        Listener first = new Listener();
+        Listener second = new Listener();
+        calls.register("share-a", SHARE, first);
+        calls.register("share-b", SHARE, second);
+
+        assertSame(second, calls.take(SHARE, "share-b").listener);
+        assertSame(first, calls.take(SHARE, "share-a").listener);
+        assertNull(calls.take(SHARE, "share-a"));
+        assertEquals(2, calls.getStats().completed);
+    }
+
+    @Test
+    public void transactionOfAnotherTypeIsNotMatched() {
+        Listener share = new Listener();
+        calls.register("tx", SHARE, share);
+
+        assertNull(calls.take(PAY, "tx"));
+        assertSame(share, calls.take(SHARE, "tx").listener);
+    }
+
+    @Test
+    public void emptyTransactionFallsBackToOldestCallOfItsType() {
+        Listener share = new Listener();
+        Listener older = new Listener();
+        Listener newer = new Listener();
+        calls.register("share", SHARE, share);
+        calls.register("pay-1", PAY, older);
+        calls.register("pay-2", PAY, newer);
+
+        assertSame(older, calls.take(PAY, "").listener);
+        assertSame(newer, calls.take(PAY, null).listener);
+        assertNull(calls.take(PAY, ""));
+        assertEquals(1, calls.getStats().pending);
+    }
+
+    @Test
+    public void unknownTransactionResolvesNothing() {
+        Listener pay = new Listener();
+        calls.register("pay-1", PAY, pay);
+
+        assertNull(calls.take(PAY, "replayed-from-earlier"));
+        assertEquals(1, calls.getStats().pending);
+        assertSame(pay, calls.take(PAY, "pay-1").listener);
+    }
+
+    @Test
+    public void lateResponseToExpiredTransactionDoesNotResolveNewerCall() {
+        calls.setTimeout(PAY, 1000);
+        Listener stale = new Listener();
+        calls.register("pay-old", PAY, stale);
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(1000));
+        assertEquals(1, expired.size());
+        assertSame(stale, expired.get(0).listener);
+
+        Listener fresh = new Listener();
+        calls.register("pay-new", PAY, fresh);
+
+        assertNull(calls.take(PAY, "pay-old"));
+        assertSame(fresh, calls.take(PAY, "pay-new").listener);
+    }
+
+    @Test
+    public void sweeperExpiresEachCallAtItsOwnDeadline() {
+        calls.setTimeout(PAY, 1000);
+        Listener first = new Listener();
+        Listener second = new Listener();
+        Listener untimed = new Listener();
+        calls.register("pay-1", PAY, first);
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(400));
+        calls.register("pay-2", PAY, second);
+        calls.register("share", SHARE, untimed);
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(599));
+        assertEquals(0, expired.size());
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(1));
+        assertEquals(1, expired.size());
+        assertSame(first, expired.get(0).listener);
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(400));
+        assertEquals(2, expired.size());
+        assertSame(second, expired.get(1).listener);
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofHours(1));
+        WechatPendingCalls.Stats stats = calls.getStats();
+        assertEquals(2, expired.size());
+        assertEquals(2, stats.expired);
+        assertEquals(1, stats.pending);
+    }
+
+    @Test
+    public void sweepExpiresOverdueCallsWhenHandlerWasHeldBack() {
+        calls.setTimeout(PAY, 1000);
+        Listener pay = new Listener();
+        calls.register("pay", PAY, pay);
+
+        // The clock moves on without the looper running, as after deep sleep.
+        ShadowSystemClock.advanceBy(Duration.ofMillis(1500));
+        assertEquals(0, expired.size());
+        calls.sweep();
+
+        assertEquals(1, expired.size());
+        assertSame(pay, expired.get(0).listener);
+        assertNull(calls.take(PAY, "pay"));
+    }
+
+    private static final class Listener implements WechatPendingCalls.ResponseListener {
+
+        @Override
+        public void onResponse(BaseResp resp) {}
+
+        @Override
+        public void onExpired() {}
+    }
+}
@@ -0,0 +1,108 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.getcapacitor.JSObject;
+import com.tencent.mm.opensdk.modelmsg.LaunchFromWX;
+import com.tencent.mm.opensdk.modelmsg.ShowMessageFromWX;
+import com.tencent.mm.opensdk.modelmsg.WXAppExtendObject;
+import com.tencent.mm.opensdk.modelmsg.WXMediaMessage;
+import java.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowSystemClock;
+
+/** {@link WechatRequestEvents} describing incoming WeChat requests and dropping quick repeats. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class WechatRequestEventsTest {
+
+    private final WechatRequestEvents events = new WechatRequestEvents();
+
+    @Test
+    public void describesShowMessageRequests() {
+        WXMediaMessage message = new WXMediaMessage();
+        message.messageExt = "{\"path\":\"/orders/42\"}";
+        message.messageAction = "open";
+        message.title = "Order";
+        message.description = "Shipped";
+        ShowMessageFromWX.Req req = new ShowMessageFromWX.Req();
+        req.transaction = "tx";
+        req.openId = "open-id";
+        req.message = message;
+        req.lang = "zh_CN";
+        req.country = "CN";
+
+        JSObject event = events.toEvent(req);
+
+        assertEquals("showMessage", event.getString("type"));
+        assertEquals(Integer.valueOf(4), event.getInteger("commandType"));
+        assertEquals("tx", event.getString("transaction"));
+        assertEquals("open-id", event.getString("openId"));
+        assertEquals("{\"path\":\"/orders/42\"}", event.getString("extInfo"));
+        assertEquals("open", event.getString("messageAction"));
+        assertEquals("Order", event.getString("title"));
+        assertEquals("Shipped", event.getString("description"));
+        assertEquals("zh_CN", event.getString("lang"));
+        assertEquals("CN", event.getString("country"));
+    }
+
+    @Test
+    public void extInfoFallsBackToTheAppObject() {
+        WXAppExtendObject app = new WXAppExtendObject();
+        app.extInfo = "legacy";
+        WXMediaMessage message = new WXMediaMessage();
+        message.mediaObject = app;
+        ShowMessageFromWX.Req req = new ShowMessageFromWX.Req();
+        req.message = message;
+
+        assertEquals("legacy", events.toEvent(req).getString("extInfo"));
+    }
+
+    @Test
+    public void describesLaunchRequests() {
+        LaunchFromWX.Req req = new LaunchFromWX.Req();
+        req.messageExt = "ext";
+        req.messageAction = "action";
+        req.lang = "en";
+
+        JSObject event = events.toEvent(req);
+
+        assertEquals("launch", event.getString("type"));
+        assertEquals(Integer.valueOf(6), event.getInteger("commandType"));
+        assertEquals("ext", event.getString("extInfo"));
+        assertEquals("action", event.getString("messageAction"));
+        assertEquals("en", event.getString("lang"));
+    }
+
+    @Test
+    public void dropsARepeatWithinTheCoalesceWindow() {
+        assertNotNull(events.toEvent(launch("ext")));
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(WechatRequestEvents.COALESCE_MS - 1));
+        assertNull(events.toEvent(launch("ext")));
+        assertNotNull(events.toEvent(launch("other")));
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(WechatRequestEvents.COALESCE_MS));
+        assertNotNull(events.toEvent(launch("ext")));
+    }
+
+    @Test
+    public void eachRepeatKeepsTheWindowOpen() {
+        assertNotNull(events.toEvent(launch("ext")));
+        ShadowSystemClock.advanceBy(Duration.ofMillis(WechatRequestEvents.COALESCE_MS - 1));
+        assertNull(events.toEvent(launch("ext")));
+        ShadowSystemClock.advanceBy(Duration.ofMillis(WechatRequestEvents.COALESCE_MS - 1));
+        assertNull(events.toEvent(launch("ext")));
+    }
+
+    private static LaunchFromWX.Req launch(String messageExt) {
+        LaunchFromWX.Req req = new LaunchFromWX.Req();
+        req.messageExt = messageExt;
+        return req;
+    }
+}
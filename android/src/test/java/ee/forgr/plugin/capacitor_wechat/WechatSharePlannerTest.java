@@ -0,0 +1,160 @@
+package ee.forgr.plugin.capacitor_wechat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** {@link WechatSharePlanner} at the exact edges of WeChat's share limits. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class WechatSharePlannerTest {
+
+    @Test
+    public void titleAtTheLimitIsKept() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("link");
+        String title = repeat('t', WechatSharePlanner.TITLE_CHARS);
+
+        assertSame(title, plan.title(title));
+        assertEquals(0, plan.getAdjustments().length());
+    }
+
+    @Test
+    public void titleOneOverTheLimitIsTruncated() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("link");
+
+        String title = plan.title(repeat('t', WechatSharePlanner.TITLE_CHARS + 1));
+
+        assertEquals(WechatSharePlanner.TITLE_CHARS, title.length());
+        assertTrue(title.endsWith("\u2026"));
+        assertAdjustment(plan, 0, "title", "truncated", 512, 513);
+    }
+
+    @Test
+    public void descriptionIsTruncatedPastItsOwnLimit() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("link");
+        String atLimit = repeat('d', WechatSharePlanner.DESCRIPTION_CHARS);
+
+        assertSame(atLimit, plan.description(atLimit));
+        String cut = plan.description(atLimit + "d");
+
+        assertEquals(WechatSharePlanner.DESCRIPTION_CHARS, cut.length());
+        assertEquals(1, plan.getAdjustments().length());
+        assertAdjustment(plan, 0, "description", "truncated", 1024, 1025);
+    }
+
+    @Test
+    public void textIsTruncatedPastItsLimit() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("text");
+        String atLimit = repeat('x', WechatSharePlanner.TEXT_CHARS);
+
+        assertSame(atLimit, plan.text(atLimit));
+        assertEquals(WechatSharePlanner.TEXT_CHARS, plan.text(atLimit + "x").length());
+        assertAdjustment(plan, 0, "text", "truncated", 10240, 10241);
+    }
+
+    @Test
+    public void truncationNeverSplitsASurrogatePair() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("link");
+        // The emoji straddles the cut, so it goes whole.
+        String title = repeat('t', WechatSharePlanner.TITLE_CHARS - 2) + "\uD83D\uDE00" + "t";
+
+        String cut = plan.title(title);
+
+        assertEquals(repeat('t', WechatSharePlanner.TITLE_CHARS - 2) + "\u2026", cut);
+    }
+
+    @Test
+    public void missingTextFieldsAreLeftAlone() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("link");
+
+        assertNull(plan.title(null));
+        assertNull(plan.description(null));
+        assertNull(plan.url("link", null));
+        assertEquals(0, plan.getAdjustments().length());
+    }
+
+    @Test
+    public void urlAtTheLimitIsKept() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("link");
+        String url = "https://example.com/" + repeat('u', WechatSharePlanner.URL_CHARS - 20);
+
+        assertSame(url, plan.url("link", url));
+    }
+
+    @Test
+    public void urlOneOverTheLimitIsRejected() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("link");
+        String url = "https://example.com/" + repeat('u', WechatSharePlanner.URL_CHARS - 19);
+
+        try {
+            plan.url("link", url);
+            fail("Expected the URL to be rejected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("link exceeds WeChat's limit of 10240 characters.", expected.getMessage());
+        }
+        assertEquals(0, plan.getAdjustments().length());
+    }
+
+    @Test
+    public void thumbnailBudgetIs64KiB() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("link");
+        byte[] atLimit = new byte[64 * 1024];
+
+        assertEquals(64 * 1024, plan.thumbBytes);
+        assertEquals(512, plan.thumbMaxSize);
+        assertArrayEquals(atLimit, plan.thumb(atLimit));
+        assertNull(plan.thumb(new byte[64 * 1024 + 1]));
+        assertAdjustment(plan, 0, "thumbData", "dropped", 65536, 65537);
+    }
+
+    @Test
+    public void miniProgramThumbnailBudgetIs128KiB() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("miniprogram");
+        byte[] atLimit = new byte[128 * 1024];
+
+        assertEquals(128 * 1024, plan.thumbBytes);
+        assertEquals(724, plan.thumbMaxSize);
+        assertArrayEquals(atLimit, plan.thumb(atLimit));
+        assertNull(plan.thumb(new byte[128 * 1024 + 1]));
+        assertAdjustment(plan, 0, "thumbData", "dropped", 131072, 131073);
+    }
+
+    @Test
+    public void missingThumbnailIsNotAnAdjustment() {
+        WechatSharePlanner plan = WechatSharePlanner.forType("link");
+
+        assertNull(plan.thumb(null));
+        assertEquals(0, plan.getAdjustments().length());
+    }
+
+    private static void assertAdjustment(
+        WechatSharePlanner plan,
+        int index,
+        String field,
+        String action,
+        int limit,
+        int original
+    ) {
+        JSONObject adjustment = plan.getAdjustments().optJSONObject(index);
+        assertEquals(field, adjustment.optString("field"));
+        assertEquals(action, adjustment.optString("action"));
+        assertEquals(limit, adjustment.optInt("limit", -1));
+        assertEquals(original, adjustment.optInt("original", -1));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
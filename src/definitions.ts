@@ -1,3 +1,5 @@
+import type { PluginListenerHandle } from '@capacitor/core';
+
 /**
  * Capacitor WeChat Plugin - WeChat SDK integration for authentication, sharing, payments, and mini-programs.
  *
@@ -40,6 +42,25 @@ export interface CapacitorWechatPlugin {
    */
   isInstalled(): Promise<{ installed: boolean }>;
 
+  /**
+   * Check in one call which features the installed WeChat supports.
+   *
+   * The result is cached on the device and refreshed when WeChat is installed, updated or removed.
+   *
+   * Only available on Android.
+   *
+   * @returns Promise that resolves with the supported features
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * const { installed, miniProgram } = await CapacitorWechat.getCapabilities();
+   * if (installed && miniProgram) {
+   *   await CapacitorWechat.openMiniProgram({ username: 'gh_xxxxxxxx' });
+   * }
+   * ```
+   */
+  getCapabilities(): Promise<WechatCapabilities>;
+
   /**
    * Authenticate user with WeChat OAuth.
    *
@@ -61,6 +82,11 @@ export interface CapacitorWechatPlugin {
   /**
    * Share content to WeChat.
    *
+   * Pass `{ preparedId }` instead of share options to send a payload built earlier with `prepareShare()`.
+   *
+   * On Android, text fields and thumbnails that exceed WeChat's size limits are shortened before sending instead
+   * of failing inside WeChat; the result lists every such change.
+   *
    * @param options - Share options including type, scene, and content
    * @returns Promise that resolves when sharing is complete
    * @throws Error if sharing fails or is cancelled
@@ -85,7 +111,34 @@ export interface CapacitorWechatPlugin {
    * });
    * ```
    */
-  share(options: WechatShareOptions): Promise<void>;
+  share(options: WechatShareOptions | WechatPreparedShareReference): Promise<WechatShareResult>;
+
+  /**
+   * Build a share payload in the background so a later `share({ preparedId })` switches to WeChat immediately.
+   *
+   * Media is downloaded, decoded and encoded right away. The prepared payload can be used once and is
+   * discarded when its `ttl` elapses.
+   *
+   * Only available on Android.
+   *
+   * @param options - Share options plus an optional time to live
+   * @returns Promise that resolves with the handle of the prepared payload
+   * @throws Error if the options are invalid or the media cannot be loaded
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * const { preparedId } = await CapacitorWechat.prepareShare({
+   *   scene: 0,
+   *   type: 'link',
+   *   title: 'My Website',
+   *   link: 'https://example.com',
+   *   thumbUrl: 'https://example.com/thumb.jpg'
+   * });
+   * // Later, when the user taps the share button:
+   * await CapacitorWechat.share({ preparedId });
+   * ```
+   */
+  prepareShare(options: WechatPrepareShareOptions): Promise<WechatPreparedShare>;
 
   /**
    * Send payment request to WeChat Pay.
@@ -150,6 +203,170 @@ export interface CapacitorWechatPlugin {
    */
   chooseInvoice(options: WechatInvoiceOptions): Promise<WechatInvoiceResponse>;
 
+  /**
+   * Get hit/miss counters for the on-disk cache of remote share media.
+   *
+   * Remote `imageUrl`/`thumbUrl` sources are cached under the app cache directory and revalidated
+   * with ETag/Last-Modified once stale. The size limit is set with the `mediaCacheSize` plugin config (bytes).
+   *
+   * Only available on Android.
+   *
+   * @returns Promise that resolves with the cache counters
+   * @throws Error if the cache is unavailable
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * const { hits, misses } = await CapacitorWechat.getMediaCacheStats();
+   * ```
+   */
+  getMediaCacheStats(): Promise<WechatMediaCacheStats>;
+
+  /**
+   * Share several items one after another, for example the same link to a chat and to Moments.
+   *
+   * WeChat shows one share at a time, so each item is sent once the previous one came back from WeChat.
+   * The next item's media is prepared while the current one is open in WeChat, and items that only differ
+   * in `scene` are prepared once. Per-item failures do not reject the call; they are reported in `results`.
+   *
+   * Only available on Android.
+   *
+   * @param options - The items to share, in order
+   * @returns Promise that resolves with one result per item, in item order
+   * @throws Error if the options are invalid or WeChat is not installed
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * const share = { type: 'link' as const, link, title, thumbUrl };
+   * const { results } = await CapacitorWechat.shareBatch({
+   *   items: [{ ...share, scene: 0 }, { ...share, scene: 1 }],
+   * });
+   * ```
+   */
+  shareBatch(options: WechatShareBatchOptions): Promise<WechatShareBatchResult>;
+
+  /**
+   * Cancel a `share()`, `prepareShare()` or `shareBatch()` call that is still loading its media.
+   *
+   * The cancelled call rejects with code `CANCELLED`. Shares that already reached WeChat are not affected;
+   * a cancelled batch sends none of its remaining items.
+   *
+   * Only available on Android.
+   *
+   * @param options - The `requestId` passed to the call to cancel
+   * @returns Promise that resolves with whether a call was cancelled
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * const pending = CapacitorWechat.share({ scene: 0, type: 'image', imageUrl, requestId: 'hero-share' });
+   * // The user navigated away before the image finished downloading:
+   * await CapacitorWechat.cancelShare({ requestId: 'hero-share' });
+   * ```
+   */
+  cancelShare(options: WechatCancelShareOptions): Promise<WechatCancelShareResult>;
+
+  /**
+   * Remove every entry from the on-disk cache of remote share media. Files a share is still reading are removed
+   * once that share is done with them.
+   *
+   * Only available on Android.
+   *
+   * @returns Promise that resolves once the cache is empty
+   * @throws Error if the cache is unavailable
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * await CapacitorWechat.clearMediaCache();
+   * ```
+   */
+  clearMediaCache(): Promise<void>;
+
+  /**
+   * Get counters for calls that wait on a WeChat response (auth, share, payment, mini program, invoice).
+   *
+   * A call that gets no response before its deadline rejects with code `TIMEOUT` and counts as expired.
+   * Deadlines are set per type with the `authTimeout`, `shareTimeout`, `payTimeout`, `miniProgramTimeout`
+   * and `invoiceTimeout` plugin settings.
+   *
+   * Only available on Android.
+   *
+   * @returns Promise that resolves with the call counters
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * const { completed, expired } = await CapacitorWechat.getCallStats();
+   * ```
+   */
+  getCallStats(): Promise<WechatCallStats>;
+
+  /**
+   * Get latency histograms for each phase of the plugin's work, grouped by outcome.
+   *
+   * Phases include `media.download`, `media.decode`, `media.encode`, `queue.io`, `queue.cpu`, `queue.coordinator`,
+   * `build.<method>`, `send.<type>` and `wechat.<type>`, the time between sending a request and WeChat answering it.
+   *
+   * Only available on Android.
+   *
+   * @param options - Pass `reset: true` to clear the histograms after reading them
+   * @returns Promise that resolves with the histograms
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * const { histograms } = await CapacitorWechat.getMetrics({ reset: true });
+   * myTelemetry.send(histograms);
+   * ```
+   */
+  getMetrics(options?: WechatMetricsOptions): Promise<WechatMetricsSnapshot>;
+
+  /**
+   * Receive every latency sample as it is recorded. Samples are only sent while a listener is registered.
+   *
+   * Only available on Android.
+   *
+   * @param eventName - `'metrics'`
+   * @param listenerFunc - Called with each sample
+   * @returns Promise that resolves with a handle to remove the listener
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * const handle = await CapacitorWechat.addListener('metrics', (sample) => {
+   *   console.log(sample.name, sample.outcome, sample.durationMs);
+   * });
+   * ```
+   */
+  addListener(eventName: 'metrics', listenerFunc: (sample: WechatMetricSample) => void): Promise<PluginListenerHandle>;
+
+  /**
+   * Receive requests WeChat sends to the app, such as the "open app" button of a mini program, with their
+   * `extInfo`. A request that launched the app is kept until the first listener is added, so register this early
+   * in app startup. Identical requests delivered within a second of each other are reported once.
+   *
+   * Only available on Android.
+   *
+   * @param eventName - `'wechatRequest'`
+   * @param listenerFunc - Called with each request
+   * @returns Promise that resolves with a handle to remove the listener
+   * @since 8.1.0
+   * @example
+   * ```typescript
+   * await CapacitorWechat.addListener('wechatRequest', (request) => {
+   *   if (request.type === 'showMessage' && request.extInfo) {
+   *     router.navigate(JSON.parse(request.extInfo).path);
+   *   }
+   * });
+   * ```
+   */
+  addListener(
+    eventName: 'wechatRequest',
+    listenerFunc: (request: WechatRequestEvent) => void,
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * Remove all listeners for this plugin.
+   *
+   * @since 8.1.0
+   */
+  removeAllListeners(): Promise<void>;
+
   /**
    * Get the native Capacitor plugin version.
    *
@@ -263,6 +480,178 @@ export interface WechatShareOptions {
    * Mini-program web page URL fallback (for type 'miniprogram').
    */
   miniProgramWebPageUrl?: string;
+
+  /**
+   * Caller-chosen identifier that lets `cancelShare()` cancel this call while its media is still loading.
+   *
+   * Only used on Android.
+   */
+  requestId?: string;
+}
+
+/**
+ * Result of `share()`.
+ */
+export interface WechatShareResult {
+  /**
+   * Changes made to fit the share into WeChat's limits; empty when it was sent as given.
+   *
+   * Only available on Android.
+   */
+  adjustments?: WechatShareAdjustment[];
+}
+
+/**
+ * A share field that was changed to fit WeChat's limits.
+ */
+export interface WechatShareAdjustment {
+  /**
+   * The field that was changed: `title`, `description`, `text` or `thumbData`.
+   */
+  field: string;
+
+  /**
+   * `truncated` when the text was cut and ends with an ellipsis, `dropped` when the thumbnail was left out.
+   */
+  action: 'truncated' | 'dropped';
+
+  /**
+   * WeChat's limit for the field, in characters for text and in bytes for `thumbData`.
+   */
+  limit: number;
+
+  /**
+   * Size of the value before the change, in the same unit as `limit`.
+   */
+  original: number;
+}
+
+/**
+ * Options for `prepareShare()`.
+ */
+export interface WechatPrepareShareOptions extends WechatShareOptions {
+  /**
+   * How long the prepared payload stays available, in milliseconds.
+   *
+   * @default 60000
+   */
+  ttl?: number;
+}
+
+/**
+ * Handle returned by `prepareShare()`.
+ */
+export interface WechatPreparedShare {
+  /**
+   * Identifier to pass to `share({ preparedId })`.
+   */
+  preparedId: string;
+
+  /**
+   * Milliseconds until the prepared payload is discarded.
+   */
+  expiresIn: number;
+
+  /**
+   * Changes made to fit the payload into WeChat's limits.
+   *
+   * Only available on Android.
+   */
+  adjustments?: WechatShareAdjustment[];
+}
+
+/**
+ * Reference to a payload built by `prepareShare()`.
+ */
+export interface WechatPreparedShareReference {
+  /**
+   * Identifier returned by `prepareShare()`.
+   */
+  preparedId: string;
+}
+
+/**
+ * Options for `shareBatch()`.
+ */
+export interface WechatShareBatchOptions {
+  /**
+   * Items to share, in order. Each item takes the same options as `share()`.
+   */
+  items: WechatShareOptions[];
+
+  /**
+   * Skip the remaining items once an item fails or is cancelled by the user.
+   *
+   * @default false
+   */
+  stopOnError?: boolean;
+
+  /**
+   * Caller-chosen identifier that lets `cancelShare()` cancel the batch.
+   */
+  requestId?: string;
+}
+
+/**
+ * Result of `shareBatch()`.
+ */
+export interface WechatShareBatchResult {
+  /**
+   * One entry per item, in item order.
+   */
+  results: WechatShareBatchItemResult[];
+}
+
+/**
+ * Outcome of one `shareBatch()` item.
+ */
+export interface WechatShareBatchItemResult {
+  /**
+   * Position of the item in `items`.
+   */
+  index: number;
+
+  /**
+   * Whether WeChat reported the share as successful.
+   */
+  success: boolean;
+
+  /**
+   * Error message when `success` is `false`.
+   */
+  error?: string;
+
+  /**
+   * WeChat error code, `TIMEOUT`, `MEDIA_TOO_LARGE`, or `SKIPPED` for items not sent because of `stopOnError`.
+   */
+  code?: string;
+
+  /**
+   * Changes made to fit the item into WeChat's limits.
+   *
+   * Only available on Android.
+   */
+  adjustments?: WechatShareAdjustment[];
+}
+
+/**
+ * Options for `cancelShare()`.
+ */
+export interface WechatCancelShareOptions {
+  /**
+   * The `requestId` given to `share()`, `prepareShare()` or `shareBatch()`.
+   */
+  requestId: string;
+}
+
+/**
+ * Result of `cancelShare()`.
+ */
+export interface WechatCancelShareResult {
+  /**
+   * `false` when no call with that `requestId` was still loading media.
+   */
+  cancelled: boolean;
 }
 
 /**
@@ -348,6 +737,13 @@ export interface WechatInvoiceOptions {
    * Random string.
    */
   nonceStr: string;
+
+  /**
+   * Also return every field WeChat sent for each card under `fields`. Only used on Android.
+   *
+   * @default false
+   */
+  rawFields?: boolean;
 }
 
 /**
@@ -373,6 +769,11 @@ export interface WechatInvoiceCard {
    * Encrypted code returned by WeChat.
    */
   encryptCode?: string;
+
+  /**
+   * Every field of the card as sent by WeChat, when `rawFields` was set.
+   */
+  fields?: { [key: string]: unknown };
 }
 
 /**
@@ -389,3 +790,277 @@ export interface WechatInitializationOptions {
    */
   universalLink?: string;
 }
+
+/**
+ * Counters for the on-disk share media cache.
+ */
+export interface WechatMediaCacheStats {
+  /**
+   * Fetches served from disk, including ones revalidated with a 304 response.
+   */
+  hits: number;
+
+  /**
+   * Fetches that downloaded the full body.
+   */
+  misses: number;
+
+  /**
+   * Stale entries confirmed unchanged by the server (HTTP 304).
+   */
+  revalidations: number;
+
+  /**
+   * Entries removed to stay under the size limit.
+   */
+  evictions: number;
+
+  /**
+   * Number of cached entries.
+   */
+  entries: number;
+
+  /**
+   * Bytes currently used on disk.
+   */
+  sizeBytes: number;
+
+  /**
+   * Configured size limit in bytes.
+   */
+  maxBytes: number;
+}
+
+/**
+ * Features supported by the installed WeChat.
+ */
+export interface WechatCapabilities {
+  /**
+   * Whether WeChat is installed.
+   */
+  installed: boolean;
+
+  /**
+   * API level reported by WeChat, `0` when it is not installed.
+   */
+  supportApi: number;
+
+  /**
+   * Sharing to Moments (timeline) is supported.
+   */
+  timeline: boolean;
+
+  /**
+   * `sendPaymentRequest()` is supported.
+   */
+  payment: boolean;
+
+  /**
+   * `openMiniProgram()` is supported.
+   */
+  miniProgram: boolean;
+
+  /**
+   * `chooseInvoice()` is supported.
+   */
+  invoice: boolean;
+
+  /**
+   * Opening WeChat business views is supported.
+   */
+  businessView: boolean;
+
+  /**
+   * Images are shared to WeChat as files instead of in-memory bitmaps (Android only).
+   */
+  fileShare: boolean;
+
+  /**
+   * Milliseconds the plugin spent initialising the WeChat SDK at load, or `-1` while it has not finished.
+   * Compare values with and without the `asyncInit` setting.
+   */
+  sdkInitMs: number;
+}
+
+/**
+ * Counters for calls waiting on a WeChat response.
+ */
+export interface WechatCallStats {
+  /**
+   * Calls still waiting for WeChat.
+   */
+  pending: number;
+
+  /**
+   * Calls that received a response from WeChat.
+   */
+  completed: number;
+
+  /**
+   * Calls rejected with `TIMEOUT` because WeChat did not respond before their deadline.
+   */
+  expired: number;
+
+  /**
+   * WeChat responses and requests held while the plugin was not loaded, waiting to be replayed.
+   */
+  bufferedEvents: number;
+
+  /**
+   * Held events replayed to the plugin once it loaded.
+   */
+  replayedEvents: number;
+
+  /**
+   * Held events discarded because they expired, the buffer was full, or a newer event had the same transaction.
+   */
+  droppedEvents: number;
+}
+
+/**
+ * Options for `getMetrics()`.
+ */
+export interface WechatMetricsOptions {
+  /**
+   * Clear the histograms after reading them, so the next call only reports new samples.
+   *
+   * @default false
+   */
+  reset?: boolean;
+}
+
+/**
+ * Latency histograms returned by `getMetrics()`.
+ */
+export interface WechatMetricsSnapshot {
+  /**
+   * Upper bounds of the histogram buckets in milliseconds. Each histogram has one more bucket for longer samples.
+   */
+  bucketBoundsMs: number[];
+
+  /**
+   * One histogram per phase and outcome.
+   */
+  histograms: WechatMetricHistogram[];
+}
+
+/**
+ * Latency histogram for one phase and outcome.
+ */
+export interface WechatMetricHistogram {
+  /**
+   * Phase name, for example `media.download` or `wechat.share`.
+   */
+  name: string;
+
+  /**
+   * Outcome of the phase, for example `ok`, `error`, `cancelled`, `timeout` or `user_cancel`.
+   */
+  outcome: string;
+
+  /**
+   * Number of samples.
+   */
+  count: number;
+
+  /**
+   * Sum of all samples in milliseconds.
+   */
+  totalMs: number;
+
+  /**
+   * Longest sample in milliseconds.
+   */
+  maxMs: number;
+
+  /**
+   * Median estimated from the buckets, in milliseconds.
+   */
+  p50Ms: number;
+
+  /**
+   * 95th percentile estimated from the buckets, in milliseconds.
+   */
+  p95Ms: number;
+
+  /**
+   * Sample count per bucket, matching `bucketBoundsMs`.
+   */
+  buckets: number[];
+}
+
+/**
+ * A request WeChat sent to the app, delivered to `wechatRequest` listeners.
+ */
+export interface WechatRequestEvent {
+  /**
+   * `showMessage` when WeChat opens the app with a message, for example from a mini program's "open app"
+   * button; `launch` when WeChat launches the app directly; `other` for any other request.
+   */
+  type: 'showMessage' | 'launch' | 'other';
+
+  /**
+   * WeChat SDK command type of the request.
+   */
+  commandType: number;
+
+  /**
+   * Transaction set by WeChat.
+   */
+  transaction?: string;
+
+  /**
+   * OpenID of the WeChat user.
+   */
+  openId?: string;
+
+  /**
+   * Extra information passed by the sender, such as a mini program's `app-parameter`.
+   */
+  extInfo?: string;
+
+  /**
+   * Message action passed by the sender.
+   */
+  messageAction?: string;
+
+  /**
+   * Title of the message, for `showMessage` requests.
+   */
+  title?: string;
+
+  /**
+   * Description of the message, for `showMessage` requests.
+   */
+  description?: string;
+
+  /**
+   * Language of the WeChat client.
+   */
+  lang?: string;
+
+  /**
+   * Country of the WeChat client.
+   */
+  country?: string;
+}
+
+/**
+ * A single latency sample delivered to `metrics` listeners.
+ */
+export interface WechatMetricSample {
+  /**
+   * Phase name.
+   */
+  name: string;
+
+  /**
+   * Outcome of the phase.
+   */
+  outcome: string;
+
+  /**
+   * Duration in milliseconds.
+   */
+  durationMs: number;
+}
@@ -5,10 +5,23 @@ import type {
   WechatAuthOptions,
   WechatAuthResponse,
   WechatShareOptions,
+  WechatShareResult,
   WechatPaymentOptions,
   WechatMiniProgramOptions,
   WechatInvoiceOptions,
   WechatInvoiceResponse,
+  WechatMediaCacheStats,
+  WechatPrepareShareOptions,
+  WechatPreparedShare,
+  WechatPreparedShareReference,
+  WechatShareBatchOptions,
+  WechatShareBatchResult,
+  WechatCancelShareOptions,
+  WechatCancelShareResult,
+  WechatCallStats,
+  WechatCapabilities,
+  WechatMetricsOptions,
+  WechatMetricsSnapshot,
 } from './definitions';
 
 export class CapacitorWechatWeb extends WebPlugin implements CapacitorWechatPlugin {
@@ -20,13 +33,32 @@ export class CapacitorWechatWeb extends WebPlugin implements CapacitorWechatPlug
     return Promise.resolve({ installed: false });
   }
 
+  getCapabilities(): Promise<WechatCapabilities> {
+    return Promise.resolve({
+      installed: false,
+      supportApi: 0,
+      timeline: false,
+      payment: false,
+      miniProgram: false,
+      invoice: false,
+      businessView: false,
+      fileShare: false,
+      sdkInitMs: -1,
+    });
+  }
+
   // eslint-disable-next-line @typescript-eslint/no-unused-vars
   auth(_options: WechatAuthOptions): Promise<WechatAuthResponse> {
     throw new Error('Method not implemented on web platform.');
   }
 
   // eslint-disable-next-line @typescript-eslint/no-unused-vars
-  share(_options: WechatShareOptions): Promise<void> {
+  share(_options: WechatShareOptions | WechatPreparedShareReference): Promise<WechatShareResult> {
+    throw new Error('Method not implemented on web platform.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  prepareShare(_options: WechatPrepareShareOptions): Promise<WechatPreparedShare> {
     throw new Error('Method not implemented on web platform.');
   }
 
@@ -45,6 +77,33 @@ export class CapacitorWechatWeb extends WebPlugin implements CapacitorWechatPlug
     throw new Error('Method not implemented on web platform.');
   }
 
+  getMediaCacheStats(): Promise<WechatMediaCacheStats> {
+    throw new Error('Method not implemented on web platform.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  shareBatch(_options: WechatShareBatchOptions): Promise<WechatShareBatchResult> {
+    throw new Error('Method not implemented on web platform.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  cancelShare(_options: WechatCancelShareOptions): Promise<WechatCancelShareResult> {
+    throw new Error('Method not implemented on web platform.');
+  }
+
+  clearMediaCache(): Promise<void> {
+    throw new Error('Method not implemented on web platform.');
+  }
+
+  getCallStats(): Promise<WechatCallStats> {
+    throw new Error('Method not implemented on web platform.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  getMetrics(_options?: WechatMetricsOptions): Promise<WechatMetricsSnapshot> {
+    throw new Error('Method not implemented on web platform.');
+  }
+
   async getPluginVersion(): Promise<{ version: string }> {
     return { version: 'web' };
   }